@@ -0,0 +1,32 @@
+package com.ragnaroh.chat.benchmarks;
+
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Import;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+
+import com.ragnaroh.chat.server.services.ServicesConfig;
+import com.ragnaroh.chat.server.web.servlet.websocket.RoomSubscriptionHelper;
+import com.ragnaroh.chat.server.web.servlet.websocket.StompTemplate;
+
+// The services against the in-memory H2 database from the server's application.properties, plus the subscription
+// helper with a messaging template that discards everything sent to it
+@Import({ ServicesConfig.class, RoomSubscriptionHelper.class, StompTemplate.class })
+public class BenchmarkApplication {
+
+   @Bean
+   public SimpMessagingTemplate simpMessagingTemplate() {
+      return new SimpMessagingTemplate((message, timeout) -> true);
+   }
+
+   public static ConfigurableApplicationContext start(String... args) {
+      return new SpringApplicationBuilder(BenchmarkApplication.class)
+            .web(WebApplicationType.NONE)
+            // Debug logging would dominate the measurements
+            .properties("logging.level.com.ragnaroh.chat=WARN")
+            .run(args);
+   }
+
+}
@@ -0,0 +1,66 @@
+package com.ragnaroh.chat.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import com.ragnaroh.chat.server.services.RoomService;
+import com.ragnaroh.chat.server.services.model.room.event.Event;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "--enable-preview")
+public class GetEventsBenchmark {
+
+   @Param({ "1000", "100000" })
+   private int events;
+
+   // With the event cache disabled every call reads from the event store
+   @Param({ "true", "false" })
+   private boolean cached;
+
+   private ConfigurableApplicationContext context;
+   private RoomService roomService;
+   private String roomId;
+
+   @Setup(Level.Trial)
+   public void setUp() {
+      context = BenchmarkApplication.start("--chat.event-cache.max-events-per-room=" + (cached ? events : 0));
+      roomService = context.getBean(RoomService.class);
+      roomId = roomService.createRoom("benchmark");
+      roomService.addUser(roomId, "writer", "writer");
+      // Joining is the first event
+      roomService.activateUser(roomId, "writer");
+      for (int i = 1; i < events; i++) {
+         roomService.addMessage(roomId, "writer", "Message number " + i);
+      }
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() {
+      context.close();
+   }
+
+   @Benchmark
+   public List<Event> getEvents() {
+      return roomService.getEvents(roomId);
+   }
+
+}
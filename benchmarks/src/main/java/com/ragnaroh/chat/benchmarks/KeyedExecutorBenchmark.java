@@ -0,0 +1,84 @@
+package com.ragnaroh.chat.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.ragnaroh.chat.server.services.KeyedExecutor;
+import com.ragnaroh.chat.server.services.MailboxExecutor;
+import com.ragnaroh.chat.server.services.RoomExecutionModel;
+import com.ragnaroh.chat.server.services.SynchronizedExecutor;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "--enable-preview")
+@Threads(4)
+public class KeyedExecutorBenchmark {
+
+   private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+
+   @Param({ "SYNCHRONIZED", "MAILBOX" })
+   private RoomExecutionModel model;
+
+   // Simulated work done while holding the key, in JMH tokens
+   @Param({ "0", "100" })
+   private long work;
+
+   private KeyedExecutor<String> executor;
+
+   @Setup(Level.Trial)
+   public void setUp() {
+      executor = switch (model) {
+      case SYNCHRONIZED -> new SynchronizedExecutor<>();
+      case MAILBOX -> new MailboxExecutor<>(Runtime.getRuntime().availableProcessors());
+      };
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() throws InterruptedException {
+      if (executor instanceof MailboxExecutor) {
+         ((MailboxExecutor<?>) executor).shutdown();
+      }
+   }
+
+   @State(Scope.Thread)
+   public static class ThreadKey {
+
+      private final String key = "room-" + THREAD_COUNTER.incrementAndGet();
+
+   }
+
+   @Benchmark
+   public Long contended() {
+      return executor.execute("room", this::doWork);
+   }
+
+   @Benchmark
+   public Long uncontended(ThreadKey threadKey) {
+      return executor.execute(threadKey.key, this::doWork);
+   }
+
+   private Long doWork() {
+      Blackhole.consumeCPU(work);
+      return work;
+   }
+
+}
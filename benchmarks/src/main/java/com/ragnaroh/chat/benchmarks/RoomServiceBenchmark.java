@@ -0,0 +1,63 @@
+package com.ragnaroh.chat.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import com.ragnaroh.chat.server.services.RoomService;
+import com.ragnaroh.chat.server.services.model.room.PresenceChange;
+import com.ragnaroh.chat.server.services.model.room.event.Event;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "--enable-preview")
+public class RoomServiceBenchmark {
+
+   private ConfigurableApplicationContext context;
+   private RoomService roomService;
+   private String roomId;
+
+   @Setup(Level.Trial)
+   public void setUp() {
+      context = BenchmarkApplication.start();
+      roomService = context.getBean(RoomService.class);
+      roomId = roomService.createRoom("benchmark");
+      roomService.addUser(roomId, "writer", "writer");
+      roomService.activateUser(roomId, "writer");
+      roomService.addUser(roomId, "visitor", "visitor");
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() {
+      context.close();
+   }
+
+   @Benchmark
+   public Event addMessage() {
+      return roomService.addMessage(roomId, "writer", "Hello, world!");
+   }
+
+   @Benchmark
+   public PresenceChange activateAndDeactivateUser() {
+      // Parting leaves the user INACTIVE, and only a PENDING user is joined again
+      roomService.readdUser(roomId, "visitor");
+      roomService.activateUser(roomId, "visitor");
+      return roomService.deactivateUser(roomId, "visitor");
+   }
+
+}
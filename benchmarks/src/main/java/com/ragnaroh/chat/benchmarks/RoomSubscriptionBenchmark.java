@@ -0,0 +1,90 @@
+package com.ragnaroh.chat.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import com.ragnaroh.chat.server.services.RoomService;
+import com.ragnaroh.chat.server.web.servlet.websocket.RoomSubscriptionHelper;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "--enable-preview")
+public class RoomSubscriptionBenchmark {
+
+   // Users in the room, each with one open session subscribed to it
+   @Param({ "100", "10000" })
+   private int sessions;
+
+   // How long a disconnected user stays in the room, zero parts the user right away
+   @Param({ "0", "10s" })
+   private String linger;
+
+   private ConfigurableApplicationContext context;
+   private RoomService roomService;
+   private RoomSubscriptionHelper roomSubscriptionHelper;
+   private String roomId;
+   private int next;
+
+   @Setup(Level.Trial)
+   public void setUp() {
+      context = BenchmarkApplication.start("--chat.stomp.presence-linger=" + linger);
+      roomService = context.getBean(RoomService.class);
+      roomSubscriptionHelper = context.getBean(RoomSubscriptionHelper.class);
+      roomId = roomService.createRoom("benchmark");
+      for (int i = 0; i < sessions; i++) {
+         roomService.addUser(roomId, userId(i), "user" + i);
+         roomSubscriptionHelper.onSubscribe(userId(i), "session-" + i, "sub-0", roomId).join();
+      }
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() {
+      context.close();
+   }
+
+   // A user opening another tab: the user is already in the room, so only the subscriptions change
+   @Benchmark
+   public void subscribeAndDisconnectExtraSession() {
+      String userId = userId(nextUser());
+      roomSubscriptionHelper.onSubscribe(userId, "extra-session", "sub-0", roomId).join();
+      roomSubscriptionHelper.onDisconnect(userId, "extra-session").join();
+   }
+
+   // A user leaving and coming back through the try-enter endpoint, which deactivates and activates the user and
+   // broadcasts both events, unless the user is still lingering
+   @Benchmark
+   public void disconnectAndResubscribe() {
+      int user = nextUser();
+      String userId = userId(user);
+      roomSubscriptionHelper.onDisconnect(userId, "session-" + user).join();
+      roomService.readdUser(roomId, userId);
+      roomSubscriptionHelper.onSubscribe(userId, "session-" + user, "sub-0", roomId).join();
+   }
+
+   private int nextUser() {
+      next = (next + 1) % sessions;
+      return next;
+   }
+
+   private static String userId(int user) {
+      return "user-" + user;
+   }
+
+}
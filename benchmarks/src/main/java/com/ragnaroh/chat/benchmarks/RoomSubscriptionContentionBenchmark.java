@@ -0,0 +1,98 @@
+package com.ragnaroh.chat.benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import com.ragnaroh.chat.server.services.RoomService;
+import com.ragnaroh.chat.server.web.servlet.websocket.RoomSubscriptionHelper;
+
+// Many users joining and leaving rooms at the same time, each from threads of their own, so that every subscription
+// and disconnect activates or deactivates the user. Measures how well unrelated users proceed in parallel.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "--enable-preview")
+@Threads(16)
+public class RoomSubscriptionContentionBenchmark {
+
+   private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+
+   // Users per thread, no two threads share a user
+   @Param({ "64" })
+   private int usersPerThread;
+
+   @Param({ "4" })
+   private int rooms;
+
+   private ConfigurableApplicationContext context;
+   private RoomService roomService;
+   private RoomSubscriptionHelper roomSubscriptionHelper;
+   private String[] roomIds;
+
+   @Setup(Level.Trial)
+   public void setUp() {
+      // Parts disconnected users right away, so that every operation goes to the database
+      context = BenchmarkApplication.start("--chat.stomp.presence-linger=0");
+      roomService = context.getBean(RoomService.class);
+      roomSubscriptionHelper = context.getBean(RoomSubscriptionHelper.class);
+      roomIds = new String[rooms];
+      for (int room = 0; room < rooms; room++) {
+         roomIds[room] = roomService.createRoom("contention" + room);
+      }
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() {
+      context.close();
+   }
+
+   @State(Scope.Thread)
+   public static class ThreadUsers {
+
+      private final int thread = THREAD_COUNTER.getAndIncrement();
+
+      @Setup(Level.Trial)
+      public void setUp(RoomSubscriptionContentionBenchmark benchmark) {
+         for (int user = 0; user < benchmark.usersPerThread; user++) {
+            for (String roomId : benchmark.roomIds) {
+               benchmark.roomService.addUser(roomId, userId(user), "user" + thread + "-" + user);
+            }
+         }
+      }
+
+      private String userId(int user) {
+         return "user-" + thread + "-" + user;
+      }
+
+   }
+
+   @Benchmark
+   public void joinAndLeave(ThreadUsers threadUsers) {
+      var random = ThreadLocalRandom.current();
+      String userId = threadUsers.userId(random.nextInt(usersPerThread));
+      String roomId = roomIds[random.nextInt(rooms)];
+      roomService.readdUser(roomId, userId);
+      roomSubscriptionHelper.onSubscribe(userId, "session", "sub-0", roomId).join();
+      roomSubscriptionHelper.onDisconnect(userId, "session").join();
+   }
+
+}
@@ -0,0 +1,131 @@
+package com.ragnaroh.chat.benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import com.ragnaroh.chat.server.services.RoomService;
+import com.ragnaroh.chat.server.web.servlet.websocket.RoomSubscriptionHelper;
+
+// Subscribes, unsubscribes and disconnects at random from several threads, for a few users with several sessions
+// each. After every iteration all sessions are disconnected, and then every user subscribes to every room from one
+// session and disconnects again. The run fails if the rooms' presence does not follow, which it would if the
+// subscription counts had drifted.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "--enable-preview")
+@Threads(8)
+public class RoomSubscriptionStressBenchmark {
+
+   private static final int USERS = 16;
+   private static final int SESSIONS_PER_USER = 4;
+   private static final String CHECK_SESSION = "check-session";
+
+   // Rooms each user moves between
+   @Param({ "4", "64" })
+   private int rooms;
+
+   private ConfigurableApplicationContext context;
+   private RoomService roomService;
+   private RoomSubscriptionHelper roomSubscriptionHelper;
+   private String[] roomIds;
+
+   @Setup(Level.Trial)
+   public void setUp() {
+      // Parts disconnected users right away, which the checks rely on
+      context = BenchmarkApplication.start("--chat.stomp.presence-linger=0");
+      roomService = context.getBean(RoomService.class);
+      roomSubscriptionHelper = context.getBean(RoomSubscriptionHelper.class);
+      roomIds = new String[rooms];
+      for (int room = 0; room < rooms; room++) {
+         roomIds[room] = roomService.createRoom("stress" + room);
+         for (int user = 0; user < USERS; user++) {
+            roomService.addUser(roomIds[room], userId(user), "user" + user);
+         }
+      }
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() {
+      context.close();
+   }
+
+   @TearDown(Level.Iteration)
+   public void verify() {
+      for (int user = 0; user < USERS; user++) {
+         for (int session = 0; session < SESSIONS_PER_USER; session++) {
+            roomSubscriptionHelper.onDisconnect(userId(user), sessionId(session)).join();
+         }
+      }
+      verifyPresent(0);
+      for (int user = 0; user < USERS; user++) {
+         for (int room = 0; room < rooms; room++) {
+            subscribe(userId(user), CHECK_SESSION, room);
+         }
+      }
+      verifyPresent(USERS);
+      for (int user = 0; user < USERS; user++) {
+         roomSubscriptionHelper.onDisconnect(userId(user), CHECK_SESSION).join();
+      }
+      verifyPresent(0);
+   }
+
+   private void verifyPresent(int users) {
+      for (String roomId : roomIds) {
+         var present = roomService.getPresence(roomId).getUsers();
+         if (present.size() != users) {
+            throw new IllegalStateException(present + " present in " + roomId + ", expected " + users + " users");
+         }
+      }
+   }
+
+   @Benchmark
+   public void churn() {
+      var random = ThreadLocalRandom.current();
+      String userId = userId(random.nextInt(USERS));
+      String sessionId = sessionId(random.nextInt(SESSIONS_PER_USER));
+      int room = random.nextInt(rooms);
+      switch (random.nextInt(4)) {
+      case 0, 1 -> subscribe(userId, sessionId, room);
+      case 2 -> roomSubscriptionHelper.onUnsubscribe(userId, sessionId, subscriptionId(room)).join();
+      default -> roomSubscriptionHelper.onDisconnect(userId, sessionId).join();
+      }
+   }
+
+   // Entering the room first, as the client does, since a user who has left is only activated again after that
+   private void subscribe(String userId, String sessionId, int room) {
+      roomService.readdUser(roomIds[room], userId);
+      roomSubscriptionHelper.onSubscribe(userId, sessionId, subscriptionId(room), roomIds[room]).join();
+   }
+
+   private static String userId(int user) {
+      return "user-" + user;
+   }
+
+   private static String sessionId(int session) {
+      return "session-" + session;
+   }
+
+   private static String subscriptionId(int room) {
+      return "sub-" + room;
+   }
+
+}
@@ -22,12 +22,14 @@ import Json.Encode as JE
 import Nav
 import Pages.Room.Common exposing (RoomId(..), RoomName(..), Username(..))
 import Ports
+import Set
 import Task
 import WebSocketSub exposing (WebSocketSub)
 
 
 type alias Model =
     { users : List String
+    , usersVersion : Maybe Int
     , events : Dict Int Event
     , messageInput : String
     }
@@ -56,13 +58,35 @@ type Msg
 
 
 type TopicMessage
-    = InitialData ( List String, List ( Int, Event ) )
+    = InitialData InitialDataContent
     | EventTopicMessage ( Int, Event )
-    | UsersTopicMessage (List String)
+    | UsersDeltaTopicMessage UsersDelta
 
 
 type QueueMessage
     = LeaveRoomQueueMessage
+    | UsersQueueMessage UsersSnapshot
+
+
+type alias InitialDataContent =
+    { users : List String
+    , usersVersion : Int
+    , events : List ( Int, Event )
+    }
+
+
+type alias UsersDelta =
+    { fromVersion : Int
+    , version : Int
+    , added : List String
+    , removed : List String
+    }
+
+
+type alias UsersSnapshot =
+    { version : Int
+    , users : List String
+    }
 
 
 
@@ -72,6 +96,7 @@ type QueueMessage
 init : ( Model, Cmd Msg )
 init =
     ( { users = []
+      , usersVersion = Nothing
       , events = Dict.empty
       , messageInput = ""
       }
@@ -104,10 +129,11 @@ update msg model roomId context =
                         |> Ports.roomMessageOut
             )
 
-        ReceiveTopicMessage (Ok (InitialData ( users, seqEvents ))) ->
+        ReceiveTopicMessage (Ok (InitialData initialData)) ->
             ( { model
-                | events = Dict.fromList seqEvents |> Dict.union model.events
-                , users = List.sort users
+                | events = Dict.fromList initialData.events |> Dict.union model.events
+                , users = List.sort initialData.users
+                , usersVersion = Just initialData.usersVersion
               }
             , jumpToBottom messageHistoryId
             )
@@ -117,10 +143,27 @@ update msg model roomId context =
             , jumpToBottom messageHistoryId
             )
 
-        ReceiveTopicMessage (Ok (UsersTopicMessage users)) ->
-            ( { model | users = List.sort users }
-            , Cmd.none
-            )
+        ReceiveTopicMessage (Ok (UsersDeltaTopicMessage delta)) ->
+            case model.usersVersion of
+                Nothing ->
+                    -- The initial data has not arrived yet, and will include this change
+                    ( model, Cmd.none )
+
+                Just version ->
+                    if delta.version <= version then
+                        ( model, Cmd.none )
+
+                    else if delta.fromVersion == version then
+                        ( { model
+                            | users = applyUsersDelta delta model.users
+                            , usersVersion = Just delta.version
+                          }
+                        , Cmd.none
+                        )
+
+                    else
+                        -- A change has been missed, start over from a snapshot
+                        ( model, Ports.requestUsers (roomIdToJson roomId) )
 
         ReceiveTopicMessage (Err _) ->
             ( model, Cmd.none )
@@ -128,6 +171,22 @@ update msg model roomId context =
         ReceiveQueueMessage (Ok LeaveRoomQueueMessage) ->
             ( model, Nav.top |> Nav.pushPath context.nav )
 
+        ReceiveQueueMessage (Ok (UsersQueueMessage snapshot)) ->
+            case model.usersVersion of
+                Just version ->
+                    if snapshot.version < version then
+                        ( model, Cmd.none )
+
+                    else
+                        ( { model | users = List.sort snapshot.users, usersVersion = Just snapshot.version }
+                        , Cmd.none
+                        )
+
+                Nothing ->
+                    ( { model | users = List.sort snapshot.users, usersVersion = Just snapshot.version }
+                    , Cmd.none
+                    )
+
         ReceiveQueueMessage (Err _) ->
             ( model, Cmd.none )
 
@@ -145,6 +204,13 @@ encodeDataToJs (RoomId roomId) message =
         ]
 
 
+applyUsersDelta : UsersDelta -> List String -> List String
+applyUsersDelta delta users =
+    Set.diff (Set.fromList users) (Set.fromList delta.removed)
+        |> Set.union (Set.fromList delta.added)
+        |> Set.toList
+
+
 jumpToBottom : String -> Cmd Msg
 jumpToBottom id =
     Browser.Dom.getViewportOf id
@@ -191,22 +257,39 @@ topicMessageDecoder =
                         JD.field "object" seqNumAndEventDecoder
                             |> JD.map EventTopicMessage
 
-                    "USERS" ->
-                        JD.field "object" (JD.list JD.string)
-                            |> JD.map UsersTopicMessage
+                    "USERS_DELTA" ->
+                        JD.field "object" usersDeltaDecoder
+                            |> JD.map UsersDeltaTopicMessage
 
                     _ ->
                         JD.fail ("Unsupported message type: " ++ messageType)
             )
 
 
-initialDataDecoder : JD.Decoder ( List String, List ( Int, Event ) )
+initialDataDecoder : JD.Decoder InitialDataContent
 initialDataDecoder =
-    JD.succeed Tuple.pair
+    JD.succeed InitialDataContent
         |> JDP.required "users" (JD.list JD.string)
+        |> JDP.required "usersVersion" JD.int
         |> JDP.required "events" (JD.list seqNumAndEventDecoder)
 
 
+usersDeltaDecoder : JD.Decoder UsersDelta
+usersDeltaDecoder =
+    JD.succeed UsersDelta
+        |> JDP.required "fromVersion" JD.int
+        |> JDP.required "version" JD.int
+        |> JDP.required "added" (JD.list JD.string)
+        |> JDP.required "removed" (JD.list JD.string)
+
+
+usersSnapshotDecoder : JD.Decoder UsersSnapshot
+usersSnapshotDecoder =
+    JD.succeed UsersSnapshot
+        |> JDP.required "version" JD.int
+        |> JDP.required "users" (JD.list JD.string)
+
+
 seqNumAndEventDecoder : JD.Decoder ( Int, Event )
 seqNumAndEventDecoder =
     JD.succeed Tuple.pair
@@ -247,6 +330,10 @@ queueMessageDecoder =
                     "LEAVE" ->
                         JD.succeed LeaveRoomQueueMessage
 
+                    "USERS" ->
+                        JD.field "object" usersSnapshotDecoder
+                            |> JD.map UsersQueueMessage
+
                     _ ->
                         JD.fail ("Unsupported message type: " ++ messageType)
             )
@@ -2,6 +2,7 @@ port module Ports exposing
     ( connectionStatusIn
     , leaveRoom
     , refreshWebSocketSubscriptions
+    , requestUsers
     , roomMessageOut
     , webSocketMessageIn
     )
@@ -22,4 +23,7 @@ port roomMessageOut : JE.Value -> Cmd msg
 port leaveRoom : JE.Value -> Cmd msg
 
 
+port requestUsers : JE.Value -> Cmd msg
+
+
 port refreshWebSocketSubscriptions : List String -> Cmd msg
@@ -19,6 +19,9 @@ function onWsConnect(sendMessage, refreshSubscriptions) {
     app.ports.leaveRoom.subscribe(roomId => {
         sendMessage('/app/room/' + roomId + '/part');
     });
+    app.ports.requestUsers.subscribe(roomId => {
+        sendMessage('/app/room/' + roomId + '/users');
+    });
 }
 
 function onWsMessage(endpoint, payload) {
@@ -29,4 +32,4 @@ function onWsClose() {
     app.ports.connectionStatusIn.send(false);
 }
 
-ws.connect('/ws/stomp', onWsConnect, onWsMessage, onWsClose);
+ws.connect('/ws/stomp-native', '/ws/stomp', onWsConnect, onWsMessage, onWsClose);
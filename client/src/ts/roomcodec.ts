@@ -0,0 +1,132 @@
+// Decoder for the compact binary encoding of room messages, see RoomMessageCodec on the server for the format.
+// Decoded messages have the same shape as their JSON counterparts.
+
+export const ROOM_MESSAGE_TYPE = 'application/octet-stream;format=chat-room-v1';
+
+const MESSAGE_TYPES = ['INITIAL_DATA', 'EVENT', 'USERS', 'USERS_DELTA', 'BATCH'];
+const EVENT_TYPES = ['MESSAGE', 'JOINED', 'PARTED'];
+
+export function isRoomMessage(contentType : string | undefined) {
+    return contentType !== undefined && contentType.startsWith('application/octet-stream');
+}
+
+// One decoder per STOMP connection, as the server keeps a username dictionary per connection
+export class RoomMessageDecoder {
+    private readonly dictionary : string[] = [];
+    private readonly textDecoder = new TextDecoder();
+
+    decode(bytes : Uint8Array) : any {
+        const reader = new Reader(bytes, this.textDecoder);
+        const sessionScoped = reader.byte() === 1;
+        return this.message(reader, sessionScoped ? this.dictionary : []);
+    }
+
+    private message(reader : Reader, dictionary : string[]) : any {
+        const type = MESSAGE_TYPES[reader.byte()];
+        switch (type) {
+            case 'INITIAL_DATA': {
+                const usersVersion = reader.varint();
+                const users = this.names(reader, dictionary);
+                const events = this.list(reader, () => this.event(reader, dictionary));
+                return { type, object: { users, usersVersion, events } };
+            }
+            case 'EVENT':
+                return { type, object: this.event(reader, dictionary) };
+            case 'USERS': {
+                const version = reader.varint();
+                return { type, object: { version, users: this.names(reader, dictionary) } };
+            }
+            case 'USERS_DELTA': {
+                const fromVersion = reader.varint();
+                const version = reader.varint();
+                const added = this.names(reader, dictionary);
+                const removed = this.names(reader, dictionary);
+                return { type, object: { fromVersion, version, added, removed } };
+            }
+            case 'BATCH':
+                return { type, object: this.list(reader, () => this.message(reader, dictionary)) };
+            default:
+                throw new Error('Unsupported message type: ' + type);
+        }
+    }
+
+    private event(reader : Reader, dictionary : string[]) : any {
+        const type = EVENT_TYPES[reader.byte()];
+        const sequenceNumber = reader.varint();
+        const timestamp = toTimestamp(reader.varint());
+        const username = this.name(reader, dictionary);
+        const event : any = { sequenceNumber, username, timestamp, type };
+        if (type === 'MESSAGE') {
+            event.text = reader.string();
+        }
+        return event;
+    }
+
+    private names(reader : Reader, dictionary : string[]) : string[] {
+        return this.list(reader, () => this.name(reader, dictionary));
+    }
+
+    private name(reader : Reader, dictionary : string[]) : string {
+        const ref = reader.varint();
+        if (ref === 0) {
+            const name = reader.string();
+            dictionary.push(name);
+            return name;
+        }
+        if (ref === 1) {
+            return reader.string();
+        }
+        return dictionary[ref - 2];
+    }
+
+    private list<T>(reader : Reader, item : () => T) : T[] {
+        const count = reader.varint();
+        const items = [];
+        for (let i = 0; i < count; i++) {
+            items.push(item());
+        }
+        return items;
+    }
+}
+
+// Same layout as the JSON timestamps: year, month, day, hour, minute, second and nanosecond, in UTC
+function toTimestamp(epochMillis : number) : number[] {
+    const date = new Date(epochMillis);
+    return [date.getUTCFullYear(),
+            date.getUTCMonth() + 1,
+            date.getUTCDate(),
+            date.getUTCHours(),
+            date.getUTCMinutes(),
+            date.getUTCSeconds(),
+            date.getUTCMilliseconds() * 1000000];
+}
+
+class Reader {
+    private position = 0;
+
+    constructor(private readonly bytes : Uint8Array, private readonly textDecoder : TextDecoder) {}
+
+    byte() : number {
+        return this.bytes[this.position++];
+    }
+
+    // Multiplies instead of shifting, since timestamps do not fit in the 32 bits that bitwise operators work on
+    varint() : number {
+        let value = 0;
+        let multiplier = 1;
+        let b;
+        do {
+            b = this.bytes[this.position++];
+            value += (b & 0x7f) * multiplier;
+            multiplier *= 128;
+        } while (b & 0x80);
+        return value;
+    }
+
+    string() : string {
+        const length = this.varint();
+        const value = this.textDecoder.decode(this.bytes.subarray(this.position, this.position + length));
+        this.position += length;
+        return value;
+    }
+}
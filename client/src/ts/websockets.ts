@@ -1,23 +1,42 @@
 import * as SockJS from 'sockjs-client';
 import { Client, StompSubscription } from '@stomp/stompjs';
+import { isRoomMessage, ROOM_MESSAGE_TYPE, RoomMessageDecoder } from './roomcodec';
 
-export function connect(url : string,
+const STOMP_PROTOCOLS = ['v12.stomp', 'v11.stomp', 'v10.stomp'];
+
+export function connect(nativePath : string,
+                        sockJsPath : string,
                         onConnect: (arg0: any, arg1: (endpoints: string[]) => void) => void,
                         onMessage: (arg0: string, arg1: any) => void,
                         onWebSocketClose: () => any) {
     const subscriptions = {};
+    // Native WebSocket is preferred. SockJS is used instead if the first native connection does not get through,
+    // for instance because a proxy in between does not support WebSocket.
+    let useSockJs = typeof WebSocket === 'undefined';
+    let nativeConnected = false;
     const client = new Client({
-        webSocketFactory: () => new SockJS(url),
+        webSocketFactory: () => useSockJs
+            ? new SockJS(sockJsPath)
+            : new WebSocket(nativeUrl(nativePath), STOMP_PROTOCOLS),
     });
     client.onConnect = () => {
-        onConnect(sendMessage(client), refreshSubscriptions(subscriptions, client, onMessage));
+        nativeConnected = !useSockJs;
+        const decoder = new RoomMessageDecoder();
+        onConnect(sendMessage(client), refreshSubscriptions(subscriptions, client, decoder, onMessage));
     };
     client.onWebSocketClose = () => {
+        if (!nativeConnected) {
+            useSockJs = true;
+        }
         onWebSocketClose();
     }
     client.activate();
 }
 
+function nativeUrl(path : string) {
+    return (window.location.protocol === 'https:' ? 'wss://' : 'ws://') + window.location.host + path;
+}
+
 function sendMessage(client : Client) {
     return (destination : string, body? : any) => {
         client.publish({ destination, body })
@@ -26,6 +45,7 @@ function sendMessage(client : Client) {
 
 function refreshSubscriptions(subscriptions: { [x: string]: any; },
                               client: Client,
+                              decoder: RoomMessageDecoder,
                               onMessage: (arg0: string, arg1: any) => void) {
     return (endpoints : string[]) => {
         const endpointSet = new Set(endpoints);
@@ -36,7 +56,7 @@ function refreshSubscriptions(subscriptions: { [x: string]: any; },
         }
         for (const endpoint of endpoints) {
             if (!(endpoint in subscriptions)) {
-                subscribe(endpoint, subscriptions, client, onMessage);
+                subscribe(endpoint, subscriptions, client, decoder, onMessage);
             }
         }
     }
@@ -52,8 +72,19 @@ function unsubscribe(endpoint : string,
 function subscribe(endpoint: string,
                    subscriptions: { [endpoint: string]: StompSubscription },
                    client: Client,
+                   decoder: RoomMessageDecoder,
                    onMessage: (arg0: string, arg1: any) => void) {
+    // The server answers in the binary format where the transport allows it, and in JSON otherwise
+    const headers = { accept: ROOM_MESSAGE_TYPE };
     subscriptions[endpoint] = client.subscribe(endpoint, data => {
-        onMessage(endpoint, JSON.parse(data.body));
-    });
+        const payload = isRoomMessage(data.headers['content-type'])
+            ? decoder.decode(data.binaryBody)
+            : JSON.parse(data.body);
+        if (payload.type === 'BATCH') {
+            // Messages coalesced by the server are passed on one by one, in order
+            payload.object.forEach((message: any) => onMessage(endpoint, message));
+        } else {
+            onMessage(endpoint, payload);
+        }
+    }, headers);
 }
@@ -0,0 +1,100 @@
+package com.ragnaroh.chat.server.common;
+
+import static java.util.Comparator.comparingLong;
+import static java.util.stream.Collectors.toList;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public final class BoundedCache<K, V> {
+
+   private final Map<K, Entry<V>> entries = new ConcurrentHashMap<>();
+   private final AtomicBoolean evicting = new AtomicBoolean();
+   private final int maxSize;
+   private final long idleTimeoutNanos;
+
+   // An idle timeout of zero disables idle expiry
+   public BoundedCache(int maxSize, Duration idleTimeout) {
+      if (maxSize < 1) {
+         throw new IllegalArgumentException("Max size must be positive, was " + maxSize);
+      }
+      this.maxSize = maxSize;
+      this.idleTimeoutNanos = idleTimeout.toNanos();
+   }
+
+   public V get(K key) {
+      Entry<V> entry = entries.get(key);
+      if (entry == null) {
+         return null;
+      }
+      long now = System.nanoTime();
+      if (entry.isIdle(now, idleTimeoutNanos)) {
+         entries.remove(key, entry);
+         return null;
+      }
+      entry.lastAccess = now;
+      return entry.value;
+   }
+
+   public void put(K key, V value) {
+      entries.put(key, new Entry<>(value, System.nanoTime()));
+      if (entries.size() > maxSize) {
+         evict();
+      }
+   }
+
+   public void remove(K key) {
+      entries.remove(key);
+   }
+
+   public void clear() {
+      entries.clear();
+   }
+
+   public int size() {
+      return entries.size();
+   }
+
+   private void evict() {
+      // Only one thread evicts at a time; concurrent writers may briefly push the size above the maximum.
+      if (!evicting.compareAndSet(false, true)) {
+         return;
+      }
+      try {
+         long now = System.nanoTime();
+         entries.values().removeIf(entry -> entry.isIdle(now, idleTimeoutNanos));
+         int excess = entries.size() - maxSize;
+         if (excess > 0) {
+            // Evicting a tenth of the cache at once keeps the sort from running on every insert into a full cache
+            entries
+                  .entrySet()
+                  .stream()
+                  .sorted(comparingLong(entry -> entry.getValue().lastAccess))
+                  .limit(Math.max(excess, maxSize / 10))
+                  .map(Map.Entry::getKey)
+                  .collect(toList())
+                  .forEach(entries::remove);
+         }
+      } finally {
+         evicting.set(false);
+      }
+   }
+
+   private static final class Entry<V> {
+
+      private final V value;
+      private volatile long lastAccess;
+
+      private Entry(V value, long lastAccess) {
+         this.value = value;
+         this.lastAccess = lastAccess;
+      }
+
+      private boolean isIdle(long now, long idleTimeoutNanos) {
+         return idleTimeoutNanos > 0 && now - lastAccess > idleTimeoutNanos;
+      }
+   }
+
+}
@@ -0,0 +1,142 @@
+package com.ragnaroh.chat.server.common;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+// Hashed timing wheel (Varghese and Lauck), for large numbers of timers that are mostly cancelled before they are due.
+// Scheduling and cancelling take constant time and no locks. One thread advances the wheel a tick at a time, and runs
+// the tasks that have come due on it, so tasks should hand any real work over to another thread. Timers fire up to one
+// tick late, never early.
+public final class TimingWheel {
+
+   private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+   private final long tickNanos;
+   private final List<List<Timeout>> buckets;
+   // Timers scheduled since the last tick, placed in their buckets by the wheel thread
+   private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+   private final AtomicInteger pending = new AtomicInteger();
+   private final ScheduledExecutorService thread;
+   private final long startNanos;
+   // Only accessed by the wheel thread
+   private long tick;
+
+   public TimingWheel(Duration tickDuration, int wheelSize, String threadName) {
+      if (tickDuration.isNegative() || tickDuration.isZero() || wheelSize < 1) {
+         throw new IllegalArgumentException("Tick duration and wheel size must be positive");
+      }
+      this.tickNanos = tickDuration.toNanos();
+      this.buckets = new ArrayList<>(wheelSize);
+      for (int i = 0; i < wheelSize; i++) {
+         buckets.add(new ArrayList<>());
+      }
+      var threadFactory = new CustomizableThreadFactory(threadName);
+      threadFactory.setDaemon(true);
+      this.thread = Executors.newSingleThreadScheduledExecutor(threadFactory);
+      this.startNanos = System.nanoTime();
+      thread.scheduleAtFixedRate(this::advance, tickNanos, tickNanos, TimeUnit.NANOSECONDS);
+   }
+
+   public Timeout schedule(Runnable task, Duration delay) {
+      var timeout = new Timeout(task, System.nanoTime() + delay.toNanos());
+      pending.incrementAndGet();
+      scheduled.add(timeout);
+      return timeout;
+   }
+
+   // Timers that have neither fired nor been cancelled
+   public int getPendingCount() {
+      return pending.get();
+   }
+
+   // Pending timers are dropped without running
+   public void stop() throws InterruptedException {
+      thread.shutdownNow();
+      thread.awaitTermination(10, TimeUnit.SECONDS);
+   }
+
+   private void advance() {
+      // Catches up on ticks missed while the thread was held up
+      long dueTick = (System.nanoTime() - startNanos) / tickNanos;
+      while (tick < dueTick) {
+         tick++;
+         placeScheduled();
+         expire(buckets.get((int) (tick % buckets.size())));
+      }
+   }
+
+   private void placeScheduled() {
+      Timeout timeout;
+      while ((timeout = scheduled.poll()) != null) {
+         if (timeout.state.get() != Timeout.PENDING) {
+            continue;
+         }
+         // Rounded up, so that the timer does not fire before its deadline
+         long deadlineTick = Math.max(tick, (timeout.deadlineNanos - startNanos + tickNanos - 1) / tickNanos);
+         timeout.rounds = (deadlineTick - tick) / buckets.size();
+         buckets.get((int) (deadlineTick % buckets.size())).add(timeout);
+      }
+   }
+
+   private void expire(List<Timeout> bucket) {
+      int kept = 0;
+      for (int i = 0; i < bucket.size(); i++) {
+         Timeout timeout = bucket.get(i);
+         if (timeout.state.get() != Timeout.PENDING) {
+            continue;
+         }
+         if (timeout.rounds > 0) {
+            timeout.rounds--;
+            bucket.set(kept++, timeout);
+         } else if (timeout.state.compareAndSet(Timeout.PENDING, Timeout.EXPIRED)) {
+            pending.decrementAndGet();
+            try {
+               timeout.task.run();
+            } catch (RuntimeException e) {
+               logger.error("Timer task failed", e);
+            }
+         }
+      }
+      bucket.subList(kept, bucket.size()).clear();
+   }
+
+   public final class Timeout {
+
+      private static final int PENDING = 0;
+      private static final int CANCELLED = 1;
+      private static final int EXPIRED = 2;
+
+      private final Runnable task;
+      private final long deadlineNanos;
+      private final AtomicInteger state = new AtomicInteger(PENDING);
+      // Full turns of the wheel left before the timer is due, only accessed by the wheel thread
+      private long rounds;
+
+      private Timeout(Runnable task, long deadlineNanos) {
+         this.task = task;
+         this.deadlineNanos = deadlineNanos;
+      }
+
+      // Returns false if the task has already run or is running. Cancelled timers are dropped from their bucket the
+      // next time the wheel passes it.
+      public boolean cancel() {
+         if (state.compareAndSet(PENDING, CANCELLED)) {
+            pending.decrementAndGet();
+            return true;
+         }
+         return false;
+      }
+   }
+
+}
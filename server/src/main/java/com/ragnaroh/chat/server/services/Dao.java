@@ -9,6 +9,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.jdbc.core.ResultSetExtractor;
 import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.namedparam.SqlParameterSourceUtils;
 import org.springframework.jdbc.support.GeneratedKeyHolder;
 import org.springframework.jdbc.support.KeyHolder;
 
@@ -59,6 +60,10 @@ public class Dao {
       return namedParameterJdbcTemplate.update(sql, new MapSqlParameterSource(params));
    }
 
+   protected int[] batchUpdate(String sql, List<? extends Map<String, ?>> batchParams) {
+      return namedParameterJdbcTemplate.batchUpdate(sql, SqlParameterSourceUtils.createBatch(batchParams));
+   }
+
    protected int updateAndReturnId(String sql, Map<String, ?> params) {
       KeyHolder keyHolder = new GeneratedKeyHolder();
       namedParameterJdbcTemplate.update(sql, new MapSqlParameterSource(params), keyHolder);
@@ -0,0 +1,161 @@
+package com.ragnaroh.chat.server.services;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.ragnaroh.chat.server.services.model.room.event.Event;
+
+@Component
+public class EventJournal implements InitializingBean, DisposableBean {
+
+   private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+   private final BlockingQueue<PendingEvent> queue = new LinkedBlockingQueue<>();
+   private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+   @Value("${chat.event-journal.enabled:false}")
+   private boolean enabled;
+   @Value("${chat.event-journal.flush-interval:50ms}")
+   private Duration flushInterval;
+   @Value("${chat.event-journal.batch-size:500}")
+   private int batchSize;
+
+   @Autowired
+   private RoomDao roomDao;
+   @Autowired
+   private TransactionTemplate transactionTemplate;
+   @Autowired
+   private EventSequenceAllocator sequenceAllocator;
+   @Autowired
+   private RoomEventCache eventCache;
+
+   private ScheduledExecutorService executor;
+   private volatile boolean closed;
+
+   @Override
+   public void afterPropertiesSet() {
+      if (enabled) {
+         var threadFactory = new CustomizableThreadFactory("event-journal-");
+         threadFactory.setDaemon(true);
+         executor = Executors.newSingleThreadScheduledExecutor(threadFactory);
+         executor
+               .scheduleWithFixedDelay(this::flushQuietly,
+                                       flushInterval.toMillis(),
+                                       flushInterval.toMillis(),
+                                       TimeUnit.MILLISECONDS);
+      }
+   }
+
+   boolean isEnabled() {
+      return enabled;
+   }
+
+   void append(String roomId, String userId, Event event) {
+      var pendingEvent = new PendingEvent(roomId, userId, event);
+      if (closed) {
+         // Late writes during shutdown are written through, since nothing will drain the queue anymore
+         write(List.of(pendingEvent));
+         return;
+      }
+      queue.add(pendingEvent);
+      if (closed) {
+         // Closed after the check above, possibly after the final flush of destroy had drained the queue. Flushing
+         // again writes the event either way.
+         flush();
+         return;
+      }
+      if (queue.size() >= batchSize && flushScheduled.compareAndSet(false, true)) {
+         try {
+            executor.execute(() -> {
+               flushScheduled.set(false);
+               flushQuietly();
+            });
+         } catch (RejectedExecutionException e) {
+            // Shut down in the meantime, which leaves the queue to the final flush of destroy
+            flushScheduled.set(false);
+         }
+      }
+   }
+
+   // Writes all queued events, and waits for any batch being written by the journal thread. Called before reading
+   // event data from the database, so that reads see every event handed out so far.
+   synchronized void flush() {
+      List<PendingEvent> batch = new ArrayList<>(batchSize);
+      while (queue.drainTo(batch, batchSize) > 0) {
+         write(batch);
+         batch.clear();
+      }
+   }
+
+   private void flushQuietly() {
+      try {
+         flush();
+      } catch (RuntimeException e) {
+         logger.error("Flushing event journal failed", e);
+      }
+   }
+
+   private void write(List<PendingEvent> batch) {
+      try {
+         transactionTemplate.executeWithoutResult(status -> roomDao.insertEvents(batch));
+      } catch (RuntimeException e) {
+         if (batch.size() == 1) {
+            drop(batch.get(0), e);
+            return;
+         }
+         logger.warn("Writing batch of {} events failed, retrying events one at a time", batch.size(), e);
+         // A single bad event should not take the rest of the batch down with it
+         for (PendingEvent pendingEvent : batch) {
+            try {
+               transactionTemplate.executeWithoutResult(status -> roomDao.insertEvents(List.of(pendingEvent)));
+            } catch (RuntimeException e2) {
+               drop(pendingEvent, e2);
+            }
+         }
+      }
+   }
+
+   // The event has already been handed out, so the room is reseeded and reloaded from what did get written, rather
+   // than carrying on with a sequence number and cached event the database does not have
+   private void drop(PendingEvent pendingEvent, RuntimeException e) {
+      logger
+            .error("Dropping event {} in room {}, it could not be written",
+                   pendingEvent.getEvent().getSequenceNumber(),
+                   pendingEvent.getRoomId(),
+                   e);
+      sequenceAllocator.reset(pendingEvent.getRoomId());
+      eventCache.invalidate(pendingEvent.getRoomId());
+   }
+
+   @Override
+   public void destroy() throws InterruptedException {
+      if (executor == null) {
+         return;
+      }
+      closed = true;
+      executor.shutdown();
+      if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+         logger.warn("Event journal thread did not stop in time");
+      }
+      flush();
+   }
+
+}
@@ -0,0 +1,129 @@
+package com.ragnaroh.chat.server.services;
+
+import static java.util.stream.Collectors.toList;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import com.ragnaroh.chat.server.services.model.room.event.Event;
+
+// The events of one room, stored in segment files named after the sequence number of their first event. Only the
+// last segment is written to, the others are mapped read-only.
+final class EventLog {
+
+   private static final String SEGMENT_SUFFIX = ".log";
+
+   private final Path directory;
+   private final int segmentSize;
+   private final NavigableMap<Integer, EventLogSegment> segments = new TreeMap<>();
+
+   private EventLog(Path directory, int segmentSize) {
+      this.directory = directory;
+      this.segmentSize = segmentSize;
+   }
+
+   static EventLog open(Path directory, int segmentSize) {
+      var log = new EventLog(directory, segmentSize);
+      try {
+         Files.createDirectories(directory);
+         List<Integer> firstSequenceNumbers;
+         try (Stream<Path> paths = Files.list(directory)) {
+            firstSequenceNumbers = paths
+                  .map(path -> path.getFileName().toString())
+                  .filter(name -> name.endsWith(SEGMENT_SUFFIX))
+                  .map(name -> Integer.valueOf(name.substring(0, name.length() - SEGMENT_SUFFIX.length())))
+                  .sorted()
+                  .collect(toList());
+         }
+         for (int i = 0; i < firstSequenceNumbers.size(); i++) {
+            int firstSequenceNumber = firstSequenceNumbers.get(i);
+            Path path = log.segmentPath(firstSequenceNumber);
+            log.segments
+                  .put(firstSequenceNumber,
+                       i == firstSequenceNumbers.size() - 1
+                             ? EventLogSegment.openWritable(path, firstSequenceNumber)
+                             : EventLogSegment.openReadOnly(path, firstSequenceNumber));
+         }
+      } catch (IOException e) {
+         throw new UncheckedIOException("Opening event log " + directory + " failed", e);
+      }
+      return log;
+   }
+
+   synchronized void append(Event event, int userKey) {
+      Map.Entry<Integer, EventLogSegment> last = segments.lastEntry();
+      if (last != null && last.getValue().append(event, userKey)) {
+         return;
+      }
+      try {
+         if (last != null) {
+            // The full segment is flushed before moving on, so only the last segment can have a torn tail
+            last.getValue().force();
+         }
+         int firstSequenceNumber = event.getSequenceNumber();
+         // A record larger than the configured segment size gets a segment of its own
+         int size = Math.max(segmentSize, EventLogSegment.recordSize(event));
+         EventLogSegment segment = EventLogSegment.create(segmentPath(firstSequenceNumber), firstSequenceNumber, size);
+         segment.append(event, userKey);
+         segments.put(firstSequenceNumber, segment);
+      } catch (IOException e) {
+         throw new UncheckedIOException("Rolling event log " + directory + " failed", e);
+      }
+   }
+
+   synchronized List<Event> read(int fromSequenceNumber, Map<Integer, String> usernames) {
+      List<Event> events = new ArrayList<>();
+      Integer firstSegment = segments.floorKey(fromSequenceNumber);
+      for (EventLogSegment segment : segments
+            .tailMap(firstSegment == null ? fromSequenceNumber : firstSegment, true)
+            .values()) {
+         segment.read(fromSequenceNumber, usernames, events);
+      }
+      return events;
+   }
+
+   synchronized Integer lastSequenceNumber() {
+      for (EventLogSegment segment : segments.descendingMap().values()) {
+         if (!segment.isEmpty()) {
+            return segment.getLastSequenceNumber();
+         }
+      }
+      return null;
+   }
+
+   synchronized void force() {
+      if (!segments.isEmpty()) {
+         segments.lastEntry().getValue().force();
+      }
+   }
+
+   // Deletes the segments of a log that is no longer open
+   static void delete(Path directory) {
+      if (!Files.isDirectory(directory)) {
+         return;
+      }
+      try {
+         try (Stream<Path> paths = Files.list(directory)) {
+            for (Path path : paths.filter(path -> path.toString().endsWith(SEGMENT_SUFFIX)).collect(toList())) {
+               Files.delete(path);
+            }
+         }
+         Files.deleteIfExists(directory);
+      } catch (IOException e) {
+         throw new UncheckedIOException("Deleting event log " + directory + " failed", e);
+      }
+   }
+
+   private Path segmentPath(int firstSequenceNumber) {
+      return directory.resolve(String.format("%010d", firstSequenceNumber) + SEGMENT_SUFFIX);
+   }
+
+}
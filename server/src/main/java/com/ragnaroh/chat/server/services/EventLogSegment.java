@@ -0,0 +1,241 @@
+package com.ragnaroh.chat.server.services;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ragnaroh.chat.server.services.model.room.event.Event;
+
+// A memory-mapped file of event records. Each record is a header holding the payload length and a CRC32 of the
+// payload, followed by the payload. A zero length marks the end of the records, since mapping extends the file with
+// zeroes.
+final class EventLogSegment {
+
+   private static final int HEADER_SIZE = 8;
+   // Sequence number, epoch second, nano, user key and type
+   private static final int FIXED_PAYLOAD_SIZE = 21;
+   // Every n-th record is added to the sparse index
+   private static final int INDEX_INTERVAL = 64;
+
+   private static final Event.Type[] TYPES = Event.Type.values();
+
+   private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+   private final Path path;
+   private final int firstSequenceNumber;
+   private final MappedByteBuffer buffer;
+   private final boolean writable;
+
+   private int[] indexSequenceNumbers = new int[16];
+   private int[] indexPositions = new int[16];
+   private int indexSize;
+   private int recordCount;
+   private int lastSequenceNumber;
+   private int end;
+   private boolean scanned;
+
+   private EventLogSegment(Path path, int firstSequenceNumber, MappedByteBuffer buffer, boolean writable) {
+      this.path = path;
+      this.firstSequenceNumber = firstSequenceNumber;
+      this.buffer = buffer;
+      this.writable = writable;
+   }
+
+   static EventLogSegment create(Path path, int firstSequenceNumber, int size) throws IOException {
+      EventLogSegment segment = open(path, firstSequenceNumber, size, true);
+      segment.scanned = true;
+      return segment;
+   }
+
+   static EventLogSegment openWritable(Path path, int firstSequenceNumber) throws IOException {
+      EventLogSegment segment = open(path, firstSequenceNumber, Files.size(path), true);
+      // The last segment is scanned up front, to find where to continue writing after a crash
+      segment.scan();
+      return segment;
+   }
+
+   static EventLogSegment openReadOnly(Path path, int firstSequenceNumber) throws IOException {
+      return open(path, firstSequenceNumber, Files.size(path), false);
+   }
+
+   private static EventLogSegment open(Path path, int firstSequenceNumber, long size, boolean writable)
+         throws IOException {
+      var options = writable
+            ? new StandardOpenOption[] { StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE }
+            : new StandardOpenOption[] { StandardOpenOption.READ };
+      // The mapping stays valid after the channel is closed
+      try (FileChannel channel = FileChannel.open(path, options)) {
+         MappedByteBuffer buffer = channel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+                                               0,
+                                               size);
+         return new EventLogSegment(path, firstSequenceNumber, buffer, writable);
+      }
+   }
+
+   static int recordSize(Event event) {
+      int size = HEADER_SIZE + FIXED_PAYLOAD_SIZE;
+      if (event instanceof Event.Message) {
+         size += Integer.BYTES + ((Event.Message) event).getText().getBytes(UTF_8).length;
+      }
+      return size;
+   }
+
+   int getFirstSequenceNumber() {
+      return firstSequenceNumber;
+   }
+
+   boolean isEmpty() {
+      scan();
+      return recordCount == 0;
+   }
+
+   // Only valid if the segment is not empty
+   int getLastSequenceNumber() {
+      scan();
+      return lastSequenceNumber;
+   }
+
+   // Returns false, without writing anything, if the record does not fit in the segment
+   boolean append(Event event, int userKey) {
+      byte[] text = event instanceof Event.Message ? ((Event.Message) event).getText().getBytes(UTF_8) : null;
+      int length = FIXED_PAYLOAD_SIZE + (text == null ? 0 : Integer.BYTES + text.length);
+      int position = end;
+      if (position + HEADER_SIZE + length > buffer.capacity()) {
+         return false;
+      }
+      ByteBuffer payload = buffer.duplicate();
+      payload.position(position + HEADER_SIZE);
+      payload.putInt(event.getSequenceNumber());
+      payload.putLong(event.getTimestamp().toEpochSecond(ZoneOffset.UTC));
+      payload.putInt(event.getTimestamp().getNano());
+      payload.putInt(userKey);
+      payload.put((byte) event.getType().ordinal());
+      if (text != null) {
+         payload.putInt(text.length);
+         payload.put(text);
+      }
+      buffer.putInt(position + 4, checksum(position, length));
+      // The length goes in last, so that a record cut short by a crash reads as the end of the segment
+      buffer.putInt(position, length);
+      addRecord(event.getSequenceNumber(), position);
+      end = position + HEADER_SIZE + length;
+      return true;
+   }
+
+   void force() {
+      if (writable) {
+         buffer.force();
+      }
+   }
+
+   void read(int fromSequenceNumber, Map<Integer, String> usernames, List<Event> events) {
+      scan();
+      int position = 0;
+      // Start from the last indexed record at or before the requested sequence number
+      int indexPosition = Arrays.binarySearch(indexSequenceNumbers, 0, indexSize, fromSequenceNumber);
+      if (indexPosition >= 0) {
+         position = indexPositions[indexPosition];
+      } else if (indexPosition < -1) {
+         position = indexPositions[-indexPosition - 2];
+      }
+      ByteBuffer view = buffer.duplicate();
+      while (position < end) {
+         int length = buffer.getInt(position);
+         view.position(position + HEADER_SIZE);
+         int sequenceNumber = view.getInt();
+         if (sequenceNumber >= fromSequenceNumber) {
+            events.add(decode(view, sequenceNumber, usernames));
+         }
+         position += HEADER_SIZE + length;
+      }
+   }
+
+   private Event decode(ByteBuffer view, int sequenceNumber, Map<Integer, String> usernames) {
+      LocalDateTime timestamp = LocalDateTime.ofEpochSecond(view.getLong(), view.getInt(), ZoneOffset.UTC);
+      int userKey = view.getInt();
+      Event.Type type = TYPES[view.get()];
+      var builder = switch (type) {
+      case MESSAGE -> {
+         byte[] text = new byte[view.getInt()];
+         view.get(text);
+         yield Event.Message.builder().text(new String(text, UTF_8));
+      }
+      case JOINED -> Event.Joined.builder();
+      case PARTED -> Event.Parted.builder();
+      };
+      return builder.sequenceNumber(sequenceNumber).username(usernames.get(userKey)).timestamp(timestamp).build();
+   }
+
+   // Walks the records once to build the sparse index and find the end. Stops at the first record that is cut short
+   // or fails its checksum, which can only be the tail of the segment that was being written when the process died.
+   private void scan() {
+      if (scanned) {
+         return;
+      }
+      scanned = true;
+      int position = 0;
+      while (position + HEADER_SIZE <= buffer.capacity()) {
+         int length = buffer.getInt(position);
+         if (length == 0) {
+            break;
+         }
+         if (length < FIXED_PAYLOAD_SIZE
+             || position + HEADER_SIZE + length > buffer.capacity()
+             || buffer.getInt(position + 4) != checksum(position, length)) {
+            logger.warn("Discarding corrupt tail of event log segment {} from position {}", path, position);
+            if (writable) {
+               truncate(position);
+            }
+            break;
+         }
+         addRecord(buffer.getInt(position + HEADER_SIZE), position);
+         position += HEADER_SIZE + length;
+      }
+      end = position;
+   }
+
+   private void truncate(int position) {
+      for (int i = position; i < buffer.capacity(); i++) {
+         buffer.put(i, (byte) 0);
+      }
+      buffer.force();
+   }
+
+   private int checksum(int position, int length) {
+      ByteBuffer payload = buffer.duplicate();
+      payload.position(position + HEADER_SIZE).limit(position + HEADER_SIZE + length);
+      var crc = new CRC32();
+      crc.update(payload);
+      return (int) crc.getValue();
+   }
+
+   private void addRecord(int sequenceNumber, int position) {
+      if (recordCount % INDEX_INTERVAL == 0) {
+         if (indexSize == indexSequenceNumbers.length) {
+            indexSequenceNumbers = Arrays.copyOf(indexSequenceNumbers, indexSize * 2);
+            indexPositions = Arrays.copyOf(indexPositions, indexSize * 2);
+         }
+         indexSequenceNumbers[indexSize] = sequenceNumber;
+         indexPositions[indexSize] = position;
+         indexSize++;
+      }
+      recordCount++;
+      lastSequenceNumber = sequenceNumber;
+   }
+
+}
@@ -0,0 +1,46 @@
+package com.ragnaroh.chat.server.services;
+
+import static org.apache.commons.lang3.ObjectUtils.defaultIfNull;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+@Component
+public class EventSequenceAllocator {
+
+   private final Map<String, AtomicInteger> lastSequenceNumbers = new ConcurrentHashMap<>();
+
+   @Autowired
+   private EventStore eventStore;
+
+   // Must be called while holding the room lock, which is what makes seeding outside of the map safe
+   int next(String roomId) {
+      AtomicInteger lastSequenceNumber = lastSequenceNumbers.get(roomId);
+      if (lastSequenceNumber == null) {
+         // Not using computeIfAbsent, to keep the query from running while holding a lock on the map
+         lastSequenceNumber = new AtomicInteger(defaultIfNull(eventStore.lastSequenceNumber(roomId), 0));
+         lastSequenceNumbers.put(roomId, lastSequenceNumber);
+      }
+      return lastSequenceNumber.incrementAndGet();
+   }
+
+   // Must be called while holding the room lock. Makes sure the next allocation for the room comes after a sequence
+   // number another node of the cluster has used.
+   void advance(String roomId, int sequenceNumber) {
+      AtomicInteger lastSequenceNumber = lastSequenceNumbers.get(roomId);
+      if (lastSequenceNumber != null) {
+         lastSequenceNumber.accumulateAndGet(sequenceNumber, Math::max);
+      }
+   }
+
+   // Makes the next allocation for the room reseed from the event store. Used when writing an allocated sequence
+   // number fails, since the number may or may not have made it to the store.
+   void reset(String roomId) {
+      lastSequenceNumbers.remove(roomId);
+   }
+
+}
@@ -0,0 +1,33 @@
+package com.ragnaroh.chat.server.services;
+
+import java.util.List;
+import java.util.Map;
+
+import com.ragnaroh.chat.server.services.model.room.event.Event;
+
+// Append-only storage of room events. Calls for a room are made while holding the room lock.
+public interface EventStore {
+
+   // Called when a room is created, discarding any events left over under the same room ID
+   public void initialize(String roomId);
+
+   // Called inside the transaction that updates the user the event is about. Stores that cannot roll back wait for it
+   // to commit.
+   public void append(String roomId, String userId, Event event);
+
+   // Same as append, for the events of several users at once, in iteration order
+   public default void appendAll(String roomId, Map<String, Event> eventsPerUser) {
+      eventsPerUser.forEach((userId, event) -> append(roomId, userId, event));
+   }
+
+   public default List<Event> read(String roomId) {
+      // Sequence numbers start at 1
+      return read(roomId, 1);
+   }
+
+   public List<Event> read(String roomId, int fromSequenceNumber);
+
+   // Returns null if the room has no events
+   public Integer lastSequenceNumber(String roomId);
+
+}
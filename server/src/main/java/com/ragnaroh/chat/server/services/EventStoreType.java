@@ -0,0 +1,10 @@
+package com.ragnaroh.chat.server.services;
+
+public enum EventStoreType {
+
+   // Events are stored in the RoomEvent tables, optionally written behind by the event journal
+   JDBC,
+   // Events are stored in per-room append-only segment files
+   FILE
+
+}
@@ -0,0 +1,114 @@
+package com.ragnaroh.chat.server.services;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.unit.DataSize;
+
+import com.ragnaroh.chat.server.services.model.room.event.Event;
+
+// Stores events in memory-mapped, append-only files, one directory of segments per room. Records hold the user key
+// rather than the username, which is resolved on read, so that events show the current username like they do when
+// read from the database.
+public class FileEventStore implements EventStore, InitializingBean, DisposableBean {
+
+   private final Map<String, EventLog> logs = new ConcurrentHashMap<>();
+
+   @Value("${chat.event-store.file.directory:data/events}")
+   private String directory;
+   @Value("${chat.event-store.file.segment-size:16MB}")
+   private DataSize segmentSize;
+
+   @Autowired
+   private RoomDao roomDao;
+   @Autowired
+   private UserDao userDao;
+
+   private Path root;
+
+   @Override
+   public void afterPropertiesSet() {
+      root = Paths.get(directory);
+   }
+
+   @Override
+   public void initialize(String roomId) {
+      logs.remove(roomId);
+      EventLog.delete(root.resolve(roomId));
+   }
+
+   @Override
+   public void append(String roomId, String userId, Event event) {
+      appendAll(roomId, Map.of(userId, event));
+   }
+
+   // Records are only written once the transaction has committed, as the log cannot take back what a rolled back
+   // transaction appended. User keys are looked up beforehand, so that an unknown user fails the transaction rather
+   // than leaving the batch half written.
+   @Override
+   public void appendAll(String roomId, Map<String, Event> eventsPerUser) {
+      var events = new ArrayList<Event>(eventsPerUser.size());
+      var userKeys = new ArrayList<Integer>(eventsPerUser.size());
+      eventsPerUser.forEach((userId, event) -> {
+         events.add(event);
+         userKeys.add(userDao.getKey(userId));
+      });
+      if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+         write(roomId, events, userKeys);
+         return;
+      }
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+         @Override
+         public void afterCommit() {
+            // Still inside the call that committed, so the room lock is held
+            write(roomId, events, userKeys);
+         }
+      });
+   }
+
+   private void write(String roomId, List<Event> events, List<Integer> userKeys) {
+      EventLog log = getLog(roomId);
+      for (int i = 0; i < events.size(); i++) {
+         log.append(events.get(i), userKeys.get(i));
+      }
+   }
+
+   @Override
+   public List<Event> read(String roomId, int fromSequenceNumber) {
+      // Also fails for unknown rooms, like the JDBC store does
+      Map<Integer, String> usernames = roomDao.fetchUsernamesByUserKey(roomId);
+      return getLog(roomId).read(fromSequenceNumber, usernames);
+   }
+
+   @Override
+   public Integer lastSequenceNumber(String roomId) {
+      return getLog(roomId).lastSequenceNumber();
+   }
+
+   // Must be called while holding the room lock, which is what makes opening outside of the map safe
+   private EventLog getLog(String roomId) {
+      EventLog log = logs.get(roomId);
+      if (log == null) {
+         // Not using computeIfAbsent, to keep file system calls from running while holding a lock on the map
+         log = EventLog.open(root.resolve(roomId), (int) segmentSize.toBytes());
+         logs.put(roomId, log);
+      }
+      return log;
+   }
+
+   @Override
+   public void destroy() {
+      logs.values().forEach(EventLog::force);
+   }
+
+}
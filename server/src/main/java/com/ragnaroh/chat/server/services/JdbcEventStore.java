@@ -0,0 +1,58 @@
+package com.ragnaroh.chat.server.services;
+
+import static java.util.stream.Collectors.toList;
+
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+
+import com.ragnaroh.chat.server.services.model.room.event.Event;
+
+public class JdbcEventStore implements EventStore {
+
+   @Autowired
+   private RoomDao roomDao;
+   @Autowired
+   private EventJournal eventJournal;
+
+   @Override
+   public void initialize(String roomId) {
+      // A new room gets a new key, so there is nothing to discard
+   }
+
+   @Override
+   public void append(String roomId, String userId, Event event) {
+      if (eventJournal.isEnabled()) {
+         eventJournal.append(roomId, userId, event);
+      } else {
+         roomDao.insertEvent(roomId, userId, event);
+      }
+   }
+
+   @Override
+   public void appendAll(String roomId, Map<String, Event> eventsPerUser) {
+      if (eventJournal.isEnabled()) {
+         EventStore.super.appendAll(roomId, eventsPerUser);
+      } else {
+         roomDao.insertEvents(eventsPerUser
+               .entrySet()
+               .stream()
+               .map(entry -> new PendingEvent(roomId, entry.getKey(), entry.getValue()))
+               .collect(toList()));
+      }
+   }
+
+   @Override
+   public List<Event> read(String roomId, int fromSequenceNumber) {
+      eventJournal.flush();
+      return roomDao.fetchEvents(roomId, fromSequenceNumber);
+   }
+
+   @Override
+   public Integer lastSequenceNumber(String roomId) {
+      eventJournal.flush();
+      return roomDao.fetchMaxEventSequenceNumber(roomId);
+   }
+
+}
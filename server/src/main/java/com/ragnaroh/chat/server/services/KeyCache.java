@@ -0,0 +1,33 @@
+package com.ragnaroh.chat.server.services;
+
+import java.time.Duration;
+import java.util.function.Function;
+
+import com.ragnaroh.chat.server.common.BoundedCache;
+
+// Caches surrogate keys by ID. Keys are never reassigned and rows are never deleted, so entries never go stale and
+// only need evicting to bound memory.
+final class KeyCache {
+
+   private final BoundedCache<String, Integer> keys;
+
+   KeyCache(int maxSize) {
+      this.keys = new BoundedCache<>(maxSize, Duration.ZERO);
+   }
+
+   Integer get(String id, Function<String, Integer> loader) {
+      Integer key = keys.get(id);
+      if (key == null) {
+         key = loader.apply(id);
+         if (key != null) {
+            keys.put(id, key);
+         }
+      }
+      return key;
+   }
+
+   void put(String id, int key) {
+      keys.put(id, key);
+   }
+
+}
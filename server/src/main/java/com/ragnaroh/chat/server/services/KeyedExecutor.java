@@ -0,0 +1,24 @@
+package com.ragnaroh.chat.server.services;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+// Executes actions one at a time and in submission order per key
+public interface KeyedExecutor<K> {
+
+   public <R> R execute(K key, Supplier<R> action);
+
+   public default void execute(K key, Runnable action) {
+      execute(key, () -> {
+         action.run();
+         return null;
+      });
+   }
+
+   public <R> CompletableFuture<R> submit(K key, Supplier<R> action);
+
+   // Number of actions waiting or running per key, for keys that have any
+   public Map<K, Integer> getQueueDepths();
+
+}
@@ -0,0 +1,224 @@
+package com.ragnaroh.chat.server.services;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+// Gives every key a mailbox that is drained by at most one task at a time on a shared pool, so callers of submit never
+// block waiting for other actions on the same key.
+public final class MailboxExecutor<K> implements KeyedExecutor<K> {
+
+   // Upper bound on actions run per pool task, so that a busy key cannot starve the others
+   private static final int MAX_ACTIONS_PER_RUN = 32;
+
+   private final ThreadLocal<K> currentKey = new ThreadLocal<>();
+   private final Map<K, Mailbox> mailboxes = new ConcurrentHashMap<>();
+   private final ExecutorService pool;
+
+   public MailboxExecutor(int threads) {
+      this(threads, "room-mailbox-");
+   }
+
+   public MailboxExecutor(int threads, String threadNamePrefix) {
+      var threadFactory = new CustomizableThreadFactory(threadNamePrefix);
+      threadFactory.setDaemon(true);
+      this.pool = Executors.newFixedThreadPool(threads, threadFactory);
+   }
+
+   @Override
+   public <R> R execute(K key, Supplier<R> action) {
+      if (key.equals(currentKey.get())) {
+         // Already inside this key's mailbox, waiting for the future would deadlock
+         return action.get();
+      }
+      try {
+         return submit(key, action).join();
+      } catch (CompletionException e) {
+         if (e.getCause() instanceof RuntimeException) {
+            throw (RuntimeException) e.getCause();
+         }
+         if (e.getCause() instanceof Error) {
+            throw (Error) e.getCause();
+         }
+         throw e;
+      }
+   }
+
+   @Override
+   public <R> CompletableFuture<R> submit(K key, Supplier<R> action) {
+      var future = new CompletableFuture<R>();
+      Runnable task = () -> {
+         try {
+            future.complete(action.get());
+         } catch (Throwable e) {
+            future.completeExceptionally(e);
+         }
+      };
+      enqueue(key, task);
+      return future;
+   }
+
+   private void enqueue(K key, Runnable task) {
+      var scheduled = new boolean[1];
+      Mailbox mailbox = mailboxes.compute(key, (k, v) -> {
+         Mailbox nonNull = v == null ? new Mailbox(k) : v;
+         nonNull.enqueue(task);
+         if (!nonNull.scheduled) {
+            nonNull.scheduled = true;
+            scheduled[0] = true;
+         }
+         return nonNull;
+      });
+      if (scheduled[0]) {
+         pool.execute(mailbox);
+      }
+   }
+
+   // Runs the action once the mailboxes of all the keys have reached it, and holds them until it is done, as if it had
+   // been submitted to each of them. Mailboxes that arrive first wait for the others without taking a thread.
+   public synchronized <R> CompletableFuture<R> submitAll(Collection<K> keys, Supplier<R> action) {
+      // Synchronized, so that any two actions sharing keys are queued in the same order in every mailbox, which keeps
+      // them from waiting on each other
+      var future = new CompletableFuture<R>();
+      var distinctKeys = new LinkedHashSet<>(keys);
+      var barrier = new Barrier(distinctKeys.size(), () -> {
+         try {
+            future.complete(action.get());
+         } catch (Throwable e) {
+            future.completeExceptionally(e);
+         }
+      });
+      if (distinctKeys.isEmpty()) {
+         pool.execute(barrier);
+      }
+      for (K key : distinctKeys) {
+         enqueue(key, barrier);
+      }
+      return future;
+   }
+
+   @Override
+   public Map<K, Integer> getQueueDepths() {
+      return mailboxes
+            .entrySet()
+            .stream()
+            .collect(Collectors.toMap(Map.Entry::getKey, entry -> entry.getValue().depth.get()));
+   }
+
+   public void shutdown() throws InterruptedException {
+      pool.shutdown();
+      pool.awaitTermination(10, TimeUnit.SECONDS);
+   }
+
+   private final class Mailbox implements Runnable {
+
+      private final K key;
+      private final Queue<Runnable> queue = new ConcurrentLinkedQueue<>();
+      private final AtomicInteger depth = new AtomicInteger();
+      // Only read and written inside mailboxes.compute
+      private boolean scheduled;
+
+      private Mailbox(K key) {
+         this.key = key;
+      }
+
+      private void enqueue(Runnable task) {
+         depth.incrementAndGet();
+         queue.add(task);
+      }
+
+      @Override
+      public void run() {
+         currentKey.set(key);
+         try {
+            for (int i = 0; i < MAX_ACTIONS_PER_RUN; i++) {
+               Runnable task = queue.poll();
+               if (task == null) {
+                  if (release()) {
+                     return;
+                  }
+                  continue;
+               }
+               try {
+                  if (task instanceof MailboxExecutor.Barrier) {
+                     if (!((Barrier) task).arrive(this)) {
+                        // Stays scheduled, the last mailbox to arrive runs it again
+                        return;
+                     }
+                  } else {
+                     task.run();
+                  }
+               } finally {
+                  depth.decrementAndGet();
+               }
+            }
+         } finally {
+            currentKey.remove();
+         }
+         // Yield the thread to other mailboxes; this mailbox stays scheduled, so ordering is kept
+         pool.execute(this);
+      }
+
+      // Removes the mailbox if it is still empty. Enqueuing happens inside compute as well, so no action can be added
+      // between the emptiness check and the removal.
+      private boolean release() {
+         var released = new boolean[1];
+         mailboxes.computeIfPresent(key, (k, v) -> {
+            if (v != this || !queue.isEmpty()) {
+               return v;
+            }
+            released[0] = true;
+            return null;
+         });
+         return released[0];
+      }
+   }
+
+   private final class Barrier implements Runnable {
+
+      private final Runnable action;
+      // Guarded by this
+      private final List<Mailbox> waiting = new ArrayList<>();
+      private int remaining;
+
+      private Barrier(int mailboxCount, Runnable action) {
+         this.action = action;
+         this.remaining = mailboxCount;
+      }
+
+      // Returns true once all mailboxes have arrived and the action has run, in which case the calling mailbox carries
+      // on. Otherwise the mailbox waits.
+      private boolean arrive(Mailbox mailbox) {
+         synchronized (this) {
+            if (--remaining > 0) {
+               waiting.add(mailbox);
+               return false;
+            }
+         }
+         run();
+         waiting.forEach(pool::execute);
+         return true;
+      }
+
+      @Override
+      public void run() {
+         action.run();
+      }
+   }
+
+}
@@ -0,0 +1,31 @@
+package com.ragnaroh.chat.server.services;
+
+import static java.util.Objects.requireNonNull;
+
+import com.ragnaroh.chat.server.services.model.room.event.Event;
+
+final class PendingEvent {
+
+   private final String roomId;
+   private final String userId;
+   private final Event event;
+
+   PendingEvent(String roomId, String userId, Event event) {
+      this.roomId = requireNonNull(roomId);
+      this.userId = requireNonNull(userId);
+      this.event = requireNonNull(event);
+   }
+
+   String getRoomId() {
+      return roomId;
+   }
+
+   String getUserId() {
+      return userId;
+   }
+
+   Event getEvent() {
+      return event;
+   }
+
+}
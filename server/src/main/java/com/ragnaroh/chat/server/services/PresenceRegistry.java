@@ -0,0 +1,282 @@
+package com.ragnaroh.chat.server.services;
+
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toUnmodifiableList;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.ragnaroh.chat.server.services.cluster.ClusterMessage;
+import com.ragnaroh.chat.server.services.cluster.ClusterRelay;
+import com.ragnaroh.chat.server.services.model.room.Presence;
+import com.ragnaroh.chat.server.services.model.room.PresenceChange;
+import com.ragnaroh.chat.server.services.model.room.RoomLite;
+
+// The users present in each room, aggregated over the nodes of the cluster. Users are attributed to the node they are
+// connected to, and a user connected to several nodes is present once. Such a user stays ACTIVE in the database until
+// the last node lets go of them, so a node only parts users no other node has. Otherwise it drops the user from its own
+// attribution and republishes its users, which the other nodes would not learn about from any event.
+@Component
+public class PresenceRegistry implements InitializingBean {
+
+   private static final Presence EMPTY = new Presence(0, List.of());
+
+   private final Map<String, RoomPresence> rooms = new ConcurrentHashMap<>();
+
+   @Autowired
+   private RoomDao roomDao;
+   @Autowired
+   private ClusterRelay clusterRelay;
+
+   @Override
+   public void afterPropertiesSet() {
+      // The database is only read to rebuild the registry, after that the registry is authoritative
+      String nodeId = clusterRelay.getNodeId();
+      for (RoomLite room : roomDao.fetchRoomsLite()) {
+         var presence = new RoomPresence(room.getName());
+         roomDao.fetchActiveUsers(room.getId()).forEach(username -> presence.add(nodeId, username));
+         rooms.put(room.getId(), presence);
+      }
+   }
+
+   // Must be called while holding the room lock, after the user has been set to ACTIVE in the database. Returns the
+   // new presence version.
+   long activate(String roomId, String username) {
+      return getOrCreate(roomId).add(clusterRelay.getNodeId(), username);
+   }
+
+   // Must be called while holding the room lock, for a user who is ACTIVE in the database already. Attributes the user
+   // to this node, and returns the change if that made the user present.
+   PresenceChange reactivate(String roomId, String username) {
+      RoomPresence presence = getOrCreate(roomId);
+      String nodeId = clusterRelay.getNodeId();
+      PresenceChange change;
+      synchronized (presence) {
+         if (presence.has(nodeId, username)) {
+            return null;
+         }
+         if (isPresent(presence.presence, username)) {
+            // Present through another node, which leaves the users and their version as they are
+            presence.usersPerNode.computeIfAbsent(nodeId, id -> new HashSet<>()).add(username);
+            change = null;
+         } else {
+            long version = presence.add(nodeId, username);
+            change = PresenceChange
+                  .builder()
+                  .fromVersion(version - 1)
+                  .version(version)
+                  .added(List.of(username))
+                  .build();
+         }
+      }
+      // No event tells the other nodes, which must not part the user while this node has them
+      publishLocalUsers();
+      return change;
+   }
+
+   // Must be called while holding the room lock, for a user another node has set to ACTIVE. Returns the new presence
+   // version.
+   long activateRemote(String roomId, String nodeId, String username) {
+      return getOrCreate(roomId).add(nodeId, username);
+   }
+
+   // Must be called while holding the room lock. Whether the user is attributed to a node other than this one, in which
+   // case the user stays in the room when this node lets go of them.
+   boolean isPresentElsewhere(String roomId, String username) {
+      RoomPresence presence = rooms.get(roomId);
+      return presence != null && presence.isPresentElsewhere(clusterRelay.getNodeId(), username);
+   }
+
+   // Must be called while holding the room lock. Drops the users from this node with a single version bump: the parted
+   // ones after they have been set to INACTIVE in the database, and the withdrawn ones, who are still in the room
+   // through other nodes or have been parted by one already. The other nodes learn about parted users from their PARTED
+   // events, and about withdrawn ones from the users of this node, which are republished. Returns the change, or null
+   // if the users present are the same.
+   PresenceChange deactivate(String roomId, Collection<String> parted, Collection<String> withdrawn) {
+      RoomPresence presence = getOrCreate(roomId);
+      String nodeId = clusterRelay.getNodeId();
+      boolean republish = withdrawn.stream().anyMatch(username -> presence.has(nodeId, username));
+      var usernames = new ArrayList<String>(parted);
+      usernames.addAll(withdrawn);
+      PresenceChange change = presence.remove(nodeId, usernames);
+      if (republish) {
+         publishLocalUsers();
+      }
+      return change;
+   }
+
+   // Must be called while holding the room lock, for a user another node has parted. Drops the user from that node
+   // only, as the user may still be connected to this one. Returns the change, or null if the user is still present.
+   PresenceChange deactivateRemote(String roomId, String nodeId, String username) {
+      RoomPresence presence = rooms.get(roomId);
+      return presence == null ? null : presence.remove(nodeId, List.of(username));
+   }
+
+   // Must be called while holding the room lock. Replaces the users attributed to another node, and returns the
+   // change if that changed who is present.
+   PresenceChange replaceRemote(String roomId, String nodeId, Collection<String> usernames) {
+      RoomPresence presence = usernames.isEmpty() ? rooms.get(roomId) : getOrCreate(roomId);
+      return presence == null ? null : presence.replace(nodeId, usernames);
+   }
+
+   // The rooms in which users are attributed to the given node
+   List<String> getRoomIds(String nodeId) {
+      return rooms
+            .entrySet()
+            .stream()
+            .filter(entry -> !entry.getValue().getUsers(nodeId).isEmpty())
+            .map(Map.Entry::getKey)
+            .collect(toList());
+   }
+
+   // The users attributed to this node, for the rooms that have any
+   Map<String, List<String>> getLocalUsers() {
+      String nodeId = clusterRelay.getNodeId();
+      var usersPerRoom = new HashMap<String, List<String>>();
+      rooms.forEach((roomId, presence) -> {
+         List<String> users = presence.getUsers(nodeId);
+         if (!users.isEmpty()) {
+            usersPerRoom.put(roomId, users);
+         }
+      });
+      return usersPerRoom;
+   }
+
+   Presence getPresence(String roomId) {
+      RoomPresence presence = rooms.get(roomId);
+      return presence == null ? EMPTY : presence.presence;
+   }
+
+   List<RoomLite> getRoomsLite() {
+      return rooms
+            .entrySet()
+            .stream()
+            .filter(entry -> !entry.getValue().presence.getUsers().isEmpty())
+            .map(entry -> RoomLite
+                  .builder()
+                  .id(entry.getKey())
+                  .name(entry.getValue().name)
+                  .users(entry.getValue().presence.getUsers().size())
+                  .build())
+            .collect(toList());
+   }
+
+   private RoomPresence getOrCreate(String roomId) {
+      RoomPresence presence = rooms.get(roomId);
+      if (presence == null) {
+         // Not using computeIfAbsent, to keep the query from running while holding a lock on the map
+         presence = new RoomPresence(roomDao.fetchRoomName(roomId));
+         rooms.put(roomId, presence);
+      }
+      return presence;
+   }
+
+   private void publishLocalUsers() {
+      clusterRelay.publish(ClusterMessage.presence(clusterRelay.getNodeId(), getLocalUsers()));
+   }
+
+   private static boolean isPresent(Presence presence, String username) {
+      return Collections.binarySearch(presence.getUsers(), username) >= 0;
+   }
+
+   private static final class RoomPresence {
+
+      private final String name;
+      // Guarded by this
+      private final Map<String, Set<String>> usersPerNode = new HashMap<>();
+      // Sorted and copied on write, as the users are read far more often than they come and go. Every change bumps
+      // the version, so that clients applying changes can tell if they missed one.
+      private volatile Presence presence = EMPTY;
+
+      private RoomPresence(String name) {
+         this.name = name;
+      }
+
+      private synchronized long add(String nodeId, String username) {
+         usersPerNode.computeIfAbsent(nodeId, id -> new HashSet<>()).add(username);
+         List<String> users = presence.getUsers();
+         int index = Collections.binarySearch(users, username);
+         if (index < 0) {
+            var newUsers = new ArrayList<>(users);
+            newUsers.add(-index - 1, username);
+            users = newUsers;
+         }
+         presence = new Presence(presence.getVersion() + 1, List.copyOf(users));
+         return presence.getVersion();
+      }
+
+      private synchronized boolean has(String nodeId, String username) {
+         Set<String> users = usersPerNode.get(nodeId);
+         return users != null && users.contains(username);
+      }
+
+      private synchronized boolean isPresentElsewhere(String nodeId, String username) {
+         return usersPerNode
+               .entrySet()
+               .stream()
+               .anyMatch(entry -> !entry.getKey().equals(nodeId) && entry.getValue().contains(username));
+      }
+
+      // Drops the users from the node. Those still attributed to other nodes stay present.
+      private synchronized PresenceChange remove(String nodeId, Collection<String> usernames) {
+         Set<String> nodeUsers = usersPerNode.get(nodeId);
+         if (nodeUsers != null) {
+            nodeUsers.removeAll(usernames);
+         }
+         var gone = new HashSet<>(usernames);
+         usersPerNode.values().forEach(gone::removeAll);
+         List<String> users = presence.getUsers();
+         List<String> removed = users.stream().filter(gone::contains).collect(toList());
+         if (removed.isEmpty()) {
+            return null;
+         }
+         long fromVersion = presence.getVersion();
+         presence = new Presence(fromVersion + 1,
+                                 users.stream().filter(user -> !gone.contains(user)).collect(toUnmodifiableList()));
+         return PresenceChange.builder().fromVersion(fromVersion).version(fromVersion + 1).removed(removed).build();
+      }
+
+      private synchronized PresenceChange replace(String nodeId, Collection<String> usernames) {
+         if (usernames.isEmpty()) {
+            usersPerNode.remove(nodeId);
+         } else {
+            usersPerNode.put(nodeId, new HashSet<>(usernames));
+         }
+         var aggregate = new TreeSet<String>();
+         usersPerNode.values().forEach(aggregate::addAll);
+         List<String> users = presence.getUsers();
+         var added = aggregate.stream().filter(username -> !isPresent(presence, username)).collect(toList());
+         var removed = users.stream().filter(username -> !aggregate.contains(username)).collect(toList());
+         if (added.isEmpty() && removed.isEmpty()) {
+            return null;
+         }
+         long fromVersion = presence.getVersion();
+         presence = new Presence(fromVersion + 1, List.copyOf(aggregate));
+         return PresenceChange
+               .builder()
+               .fromVersion(fromVersion)
+               .version(fromVersion + 1)
+               .added(added)
+               .removed(removed)
+               .build();
+      }
+
+      private synchronized List<String> getUsers(String nodeId) {
+         Set<String> users = usersPerNode.get(nodeId);
+         return users == null ? List.of() : List.copyOf(users);
+      }
+   }
+
+}
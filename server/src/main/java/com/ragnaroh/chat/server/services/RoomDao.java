@@ -1,25 +1,43 @@
 package com.ragnaroh.chat.server.services;
 
+import static java.util.Collections.emptyList;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toMap;
+
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Repository;
 
+import com.ragnaroh.chat.server.common.exceptions.NotFoundException;
 import com.ragnaroh.chat.server.services.model.room.Room;
 import com.ragnaroh.chat.server.services.model.room.Room.User.Status;
 import com.ragnaroh.chat.server.services.model.room.RoomLite;
 import com.ragnaroh.chat.server.services.model.room.event.Event;
 
 @Repository
-public class RoomDao extends Dao {
+public class RoomDao extends Dao implements InitializingBean {
+
+   @Value("${chat.key-cache.max-rooms:100000}")
+   private int keyCacheSize;
 
    @Autowired
    private UserDao userDao;
 
+   private KeyCache keys;
+
+   @Override
+   public void afterPropertiesSet() {
+      keys = new KeyCache(keyCacheSize);
+   }
+
    List<RoomLite> fetchRoomsLite() {
       return query("""
             SELECT r.ID, r.NAME, COUNT(*) AS USERS FROM Room r, RoomUser ru
@@ -37,9 +55,11 @@ public class RoomDao extends Dao {
    }
 
    int insertRoom(String id, String name) {
-      return updateAndReturnId("""
+      int key = updateAndReturnId("""
             INSERT INTO Room (`ID`,`NAME`) VALUES (:id, :name)
             """, Map.of("id", id, "name", name));
+      keys.put(id, key);
+      return key;
    }
 
    boolean roomExists(String id) {
@@ -48,33 +68,79 @@ public class RoomDao extends Dao {
             """, Map.of("id", id)) > 0;
    }
 
-   Room fetchRoom(String id) {
-      return queryForSingleResultOrNull("""
-            SELECT * FROM Room WHERE ID = :id
-            """, Map.of("id", id), this::extractRoom);
+   String fetchRoomName(String id) {
+      return queryForNullableString("""
+            SELECT NAME FROM Room WHERE ID = :id
+            """, Map.of("id", id));
    }
 
    List<String> fetchActiveUsers(String roomId) {
+      Integer roomKey = fetchRoomKeyOrNull(roomId);
+      if (roomKey == null) {
+         return emptyList();
+      }
       return queryForStringList("""
             SELECT USERNAME FROM RoomUser
-            WHERE ROOM_KEY = (SELECT KEY FROM Room WHERE ID = :roomId)
+            WHERE ROOM_KEY = :roomKey
               AND STATUS = :status
-            """, Map.of("roomId", roomId, "status", Room.User.Status.ACTIVE.name()));
+            """, Map.of("roomKey", roomKey, "status", Room.User.Status.ACTIVE.name()));
+   }
+
+   List<Room.User> fetchUsers(String roomId) {
+      return query("""
+            SELECT * FROM RoomUser WHERE ROOM_KEY = :roomKey
+            """, Map.of("roomKey", fetchRoomKey(roomId)), this::extractUser);
    }
 
-   List<Event> fetchEvents(String roomId) {
-      return fetchEvents(fetchRoomKey(roomId));
+   // The users of the room among the given ones, by user ID. Users who are not in the room are left out.
+   Map<String, Room.User> fetchUsers(String roomId, Collection<String> userIds) {
+      return query("""
+            SELECT u.ID, ru.USERNAME, ru.STATUS FROM RoomUser ru, User u
+            WHERE ru.USER_KEY = u.KEY
+              AND ru.ROOM_KEY = :roomKey
+              AND u.ID IN (:userIds)
+            """,
+                   Map.of("roomKey", fetchRoomKey(roomId), "userIds", userIds),
+                   rs -> Map.entry(rs.getString("ID"), extractUser(rs)))
+            .stream()
+            .collect(toMap(Map.Entry::getKey, Map.Entry::getValue));
+   }
+
+   Map<Integer, String> fetchUsernamesByUserKey(String roomId) {
+      return query("""
+            SELECT USER_KEY, USERNAME FROM RoomUser WHERE ROOM_KEY = :roomKey
+            """, Map.of("roomKey", fetchRoomKey(roomId)), rs -> Map.entry(rs.getInt("USER_KEY"), rs.getString("USERNAME")))
+            .stream()
+            .collect(toMap(Map.Entry::getKey, Map.Entry::getValue));
+   }
+
+   List<Event> fetchEvents(String roomId, int fromSequenceNumber) {
+      return query("""
+            SELECT re.*, ru.USERNAME, rme.TEXT FROM RoomEvent re
+            INNER JOIN RoomUser ru
+               ON ru.ROOM_KEY = re.ROOM_KEY
+              AND ru.USER_KEY = re.USER_KEY
+            LEFT JOIN RoomMessageEvent rme
+               ON re.TYPE = 'MESSAGE'
+              AND re.ROOM_KEY = rme.ROOM_KEY
+              AND re.SEQUENCE_NUMBER = rme.SEQUENCE_NUMBER
+            WHERE re.ROOM_KEY = :roomKey
+              AND re.SEQUENCE_NUMBER >= :fromSequenceNumber
+            ORDER BY re.SEQUENCE_NUMBER
+            """,
+                   Map.of("roomKey", fetchRoomKey(roomId), "fromSequenceNumber", fromSequenceNumber),
+                   this::extractEvent);
    }
 
    boolean usernameIsAvailable(String roomId, String username) {
       return queryForInteger("""
             SELECT COUNT(*) FROM RoomUser
-            WHERE ROOM_KEY = (SELECT KEY FROM Room WHERE ID = :roomId)
+            WHERE ROOM_KEY = :roomKey
               AND USERNAME = :username
               AND STATUS IN (:pending,:active)
             """,
                              paramsBuilder()
-                                   .put("roomId", roomId)
+                                   .put("roomKey", fetchRoomKey(roomId))
                                    .put("username", username)
                                    .put("pending", Room.User.Status.PENDING.name())
                                    .put("active", Room.User.Status.ACTIVE.name())
@@ -84,10 +150,10 @@ public class RoomDao extends Dao {
    void insertPendingUser(String roomId, int userKey, String username) {
       update("""
             INSERT INTO RoomUser (`ROOM_KEY`,`USER_KEY`,`USERNAME`,`STATUS`)
-            VALUES (SELECT KEY FROM Room WHERE ID = :roomId,:userKey,:username,:status)
+            VALUES (:roomKey,:userKey,:username,:status)
             """,
              paramsBuilder()
-                   .put("roomId", roomId)
+                   .put("roomKey", fetchRoomKey(roomId))
                    .put("userKey", userKey)
                    .put("username", username)
                    .put("status", Room.User.Status.PENDING.name())
@@ -99,11 +165,11 @@ public class RoomDao extends Dao {
             UPDATE RoomUser
             SET STATUS = :status
               , USERNAME = :username
-            WHERE ROOM_KEY = (SELECT KEY FROM Room WHERE ID = :roomId)
+            WHERE ROOM_KEY = :roomKey
               AND USER_KEY = :userKey
             """,
              paramsBuilder()
-                   .put("roomId", roomId)
+                   .put("roomKey", fetchRoomKey(roomId))
                    .put("userKey", userKey)
                    .put("username", username)
                    .put("status", status.name())
@@ -111,117 +177,117 @@ public class RoomDao extends Dao {
    }
 
    Room.User fetchUser(String roomId, String userId) {
+      Integer roomKey = fetchRoomKeyOrNull(roomId);
+      Integer userKey = userDao.getKeyOrNull(userId);
+      if (roomKey == null || userKey == null) {
+         return null;
+      }
       return queryForSingleResultOrNull("""
             SELECT USERNAME, STATUS FROM RoomUser
-            WHERE ROOM_KEY = (SELECT KEY FROM Room WHERE ID = :roomId)
-              AND USER_KEY = (SELECT KEY FROM User WHERE ID = :userId)
-            """, Map.of("roomId", roomId, "userId", userId), this::extractUser);
+            WHERE ROOM_KEY = :roomKey
+              AND USER_KEY = :userKey
+            """, Map.of("roomKey", roomKey, "userKey", userKey), this::extractUser);
    }
 
    void updateUserStatus(String roomId, String userId, Status status) {
       update("""
             UPDATE RoomUser
             SET STATUS = :status
-            WHERE ROOM_KEY = (SELECT KEY FROM Room WHERE ID = :roomId)
-              AND USER_KEY = (SELECT KEY FROM User WHERE ID = :userId)
-            """, Map.of("roomId", roomId, "userId", userId, "status", status.name()));
+            WHERE ROOM_KEY = :roomKey
+              AND USER_KEY = :userKey
+            """,
+             Map.of("roomKey", fetchRoomKey(roomId), "userKey", userDao.getKey(userId), "status", status.name()));
+   }
+
+   void updateUserStatuses(String roomId, Collection<String> userIds, Status status) {
+      update("""
+            UPDATE RoomUser
+            SET STATUS = :status
+            WHERE ROOM_KEY = :roomKey
+              AND USER_KEY IN (:userKeys)
+            """,
+             Map.of("roomKey",
+                    fetchRoomKey(roomId),
+                    "userKeys",
+                    userIds.stream().map(userDao::getKey).collect(toList()),
+                    "status",
+                    status.name()));
    }
 
    Integer fetchMaxEventSequenceNumber(String roomId) {
       return queryForNullableInteger("""
             SELECT MAX(SEQUENCE_NUMBER) FROM RoomEvent
-            WHERE ROOM_KEY = (SELECT KEY FROM Room WHERE ID = :roomId)
-            """, Map.of("roomId", roomId));
-   }
-
-   void insertJoinedEvent(String roomId, int sequenceNumber, String userId, LocalDateTime timestamp) {
-      insertEvent(fetchRoomKey(roomId), sequenceNumber, userDao.getKey(userId), timestamp, "JOINED");
+            WHERE ROOM_KEY = :roomKey
+            """, Map.of("roomKey", fetchRoomKey(roomId)));
    }
 
-   void insertPartedEvent(String roomId, int sequenceNumber, String userId, LocalDateTime timestamp) {
-      insertEvent(fetchRoomKey(roomId), sequenceNumber, userDao.getKey(userId), timestamp, "PARTED");
+   String fetchUsername(String roomId, String userId) {
+      Integer roomKey = fetchRoomKeyOrNull(roomId);
+      Integer userKey = userDao.getKeyOrNull(userId);
+      if (roomKey == null || userKey == null) {
+         return null;
+      }
+      return queryForNullableString("""
+            SELECT USERNAME FROM RoomUser
+            WHERE ROOM_KEY = :roomKey
+              AND USER_KEY = :userKey
+            """, Map.of("roomKey", roomKey, "userKey", userKey));
    }
 
-   void insertMessageEvent(String roomId, int sequenceNumber, String userId, String text, LocalDateTime timestamp) {
-      int roomKey = fetchRoomKey(roomId);
-      int userKey = userDao.getKey(userId);
-      insertEvent(roomKey, sequenceNumber, userKey, timestamp, "MESSAGE");
-      update("""
-            INSERT INTO RoomMessageEvent (`ROOM_KEY`,`SEQUENCE_NUMBER`,`TEXT`)
-            VALUES (:roomKey, :sequenceNumber, :text)
-            """, Map.of("roomKey", roomKey, "sequenceNumber", sequenceNumber, "text", text));
+   void insertEvent(String roomId, String userId, Event event) {
+      insertEvents(List.of(new PendingEvent(roomId, userId, event)));
    }
 
-   Event fetchEvent(String roomId, int sequenceNumber) {
-      return queryForSingleResult("""
-            SELECT re.*, ru.USERNAME, rme.TEXT FROM RoomEvent re
-            INNER JOIN RoomUser ru
-               ON ru.ROOM_KEY = re.ROOM_KEY
-              AND ru.USER_KEY = re.USER_KEY
-            LEFT JOIN RoomMessageEvent rme
-               ON re.TYPE = 'MESSAGE'
-              AND re.ROOM_KEY = rme.ROOM_KEY
-              AND re.SEQUENCE_NUMBER = rme.SEQUENCE_NUMBER
-            WHERE re.ROOM_KEY = (SELECT KEY FROM Room WHERE ID = :roomId)
-              AND re.SEQUENCE_NUMBER = :sequenceNumber
-            """, Map.of("roomId", roomId, "sequenceNumber", sequenceNumber), this::extractEvent);
-   }
-
-   private void insertEvent(int roomKey, int sequenceNumber, int userKey, LocalDateTime timestamp, String eventType) {
-      update("""
+   void insertEvents(List<PendingEvent> pendingEvents) {
+      batchUpdate("""
             INSERT INTO RoomEvent (`ROOM_KEY`,`SEQUENCE_NUMBER`,`USER_KEY`,`TYPE`,`TIMESTAMP`)
             VALUES (:roomKey, :sequenceNumber, :userKey, :eventType, :timestamp)
             """,
-             paramsBuilder()
-                   .put("roomKey", roomKey)
-                   .put("sequenceNumber", sequenceNumber)
-                   .put("userKey", userKey)
-                   .put("eventType", eventType)
-                   .put("timestamp", timestamp)
-                   .toMap());
-   }
-
-   private Room extractRoom(ResultSet rs) throws SQLException {
-      int key = rs.getInt("KEY");
-      return Room
-            .builder()
-            .id(rs.getString("ID"))
-            .name(rs.getString("NAME"))
-            .users(fetchUsers(key))
-            .events(fetchEvents(key))
-            .build();
+                  pendingEvents
+                        .stream()
+                        .map(pendingEvent -> paramsBuilder()
+                              .put("roomKey", fetchRoomKey(pendingEvent.getRoomId()))
+                              .put("sequenceNumber", pendingEvent.getEvent().getSequenceNumber())
+                              .put("userKey", userDao.getKey(pendingEvent.getUserId()))
+                              .put("eventType", pendingEvent.getEvent().getType().name())
+                              .put("timestamp", pendingEvent.getEvent().getTimestamp())
+                              .toMap())
+                        .collect(toList()));
+      var messageParams = pendingEvents
+            .stream()
+            .filter(pendingEvent -> pendingEvent.getEvent() instanceof Event.Message)
+            .map(pendingEvent -> paramsBuilder()
+                  .put("roomKey", fetchRoomKey(pendingEvent.getRoomId()))
+                  .put("sequenceNumber", pendingEvent.getEvent().getSequenceNumber())
+                  .put("text", ((Event.Message) pendingEvent.getEvent()).getText())
+                  .toMap())
+            .collect(toList());
+      if (!messageParams.isEmpty()) {
+         batchUpdate("""
+               INSERT INTO RoomMessageEvent (`ROOM_KEY`,`SEQUENCE_NUMBER`,`TEXT`)
+               VALUES (:roomKey, :sequenceNumber, :text)
+               """, messageParams);
+      }
    }
 
    private int fetchRoomKey(String roomId) {
-      return queryForInteger("""
-            SELECT KEY FROM Room WHERE ID = :roomId
-            """, Map.of("roomId", roomId));
+      Integer key = fetchRoomKeyOrNull(roomId);
+      if (key == null) {
+         throw new NotFoundException("No room with id {}", roomId);
+      }
+      return key;
    }
 
-   private List<Room.User> fetchUsers(int roomKey) {
-      return query("""
-            SELECT * FROM RoomUser WHERE ROOM_KEY = :roomKey
-            """, Map.of("roomKey", roomKey), this::extractUser);
+   private Integer fetchRoomKeyOrNull(String roomId) {
+      return keys.get(roomId, id -> queryForNullableInteger("""
+            SELECT KEY FROM Room WHERE ID = :roomId
+            """, Map.of("roomId", id)));
    }
 
    private Room.User extractUser(ResultSet rs) throws SQLException {
       return new Room.User(rs.getString("USERNAME"), Room.User.Status.valueOf(rs.getString("STATUS")));
    }
 
-   private List<Event> fetchEvents(int roomKey) {
-      return query("""
-            SELECT re.*, ru.USERNAME, rme.TEXT FROM RoomEvent re
-            INNER JOIN RoomUser ru
-               ON ru.ROOM_KEY = re.ROOM_KEY
-              AND ru.USER_KEY = re.USER_KEY
-            LEFT JOIN RoomMessageEvent rme
-               ON re.TYPE = 'MESSAGE'
-              AND re.ROOM_KEY = rme.ROOM_KEY
-              AND re.SEQUENCE_NUMBER = rme.SEQUENCE_NUMBER
-            WHERE re.ROOM_KEY = :roomKey
-            """, Map.of("roomKey", roomKey), this::extractEvent);
-   }
-
    private Event extractEvent(ResultSet rs) throws SQLException {
       String type = rs.getString("TYPE");
       var builder = switch (type) {
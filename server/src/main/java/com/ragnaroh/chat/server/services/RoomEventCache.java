@@ -0,0 +1,87 @@
+package com.ragnaroh.chat.server.services;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.ragnaroh.chat.server.common.BoundedCache;
+import com.ragnaroh.chat.server.services.model.room.event.Event;
+
+@Component
+public class RoomEventCache implements InitializingBean {
+
+   @Value("${chat.event-cache.max-rooms:1000}")
+   private int maxRooms;
+   @Value("${chat.event-cache.max-events-per-room:10000}")
+   private int maxEventsPerRoom;
+   @Value("${chat.event-cache.idle-timeout:10m}")
+   private Duration idleTimeout;
+
+   private BoundedCache<String, RoomEvents> cache;
+
+   @Override
+   public void afterPropertiesSet() {
+      cache = new BoundedCache<>(maxRooms, idleTimeout);
+   }
+
+   List<Event> get(String roomId) {
+      RoomEvents roomEvents = cache.get(roomId);
+      return roomEvents == null ? null : roomEvents.snapshot();
+   }
+
+   // Must be called while holding the room lock, so that no event can be appended between loading and caching
+   void put(String roomId, List<Event> events) {
+      if (events.size() <= maxEventsPerRoom) {
+         cache.put(roomId, new RoomEvents(events));
+      }
+   }
+
+   // Must be called while holding the room lock, after the event has been committed, by this node or another one
+   void append(String roomId, Event event) {
+      RoomEvents roomEvents = cache.get(roomId);
+      if (roomEvents != null && !roomEvents.append(event, maxEventsPerRoom)) {
+         // The room has outgrown the cache, or an event committed by another node has not arrived yet. Either way,
+         // further reads go to the database.
+         cache.remove(roomId);
+      }
+   }
+
+   void invalidate(String roomId) {
+      cache.remove(roomId);
+   }
+
+   private static final class RoomEvents {
+
+      private final List<Event> events;
+      private List<Event> snapshot;
+
+      private RoomEvents(List<Event> events) {
+         this.events = new ArrayList<>(events);
+      }
+
+      private synchronized List<Event> snapshot() {
+         // The snapshot is shared by all readers until the next append
+         if (snapshot == null) {
+            snapshot = List.copyOf(events);
+         }
+         return snapshot;
+      }
+
+      private synchronized boolean append(Event event, int maxEvents) {
+         if (events.size() >= maxEvents) {
+            return false;
+         }
+         if (!events.isEmpty() && events.get(events.size() - 1).getSequenceNumber() + 1 != event.getSequenceNumber()) {
+            return false;
+         }
+         events.add(event);
+         snapshot = null;
+         return true;
+      }
+   }
+
+}
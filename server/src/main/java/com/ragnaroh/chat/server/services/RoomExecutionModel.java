@@ -0,0 +1,10 @@
+package com.ragnaroh.chat.server.services;
+
+public enum RoomExecutionModel {
+
+   // Actions run on the calling thread while holding a per-room monitor
+   SYNCHRONIZED,
+   // Actions are queued in a per-room mailbox and run on a shared pool
+   MAILBOX
+
+}
@@ -1,7 +1,12 @@
 package com.ragnaroh.chat.server.services;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
+import com.ragnaroh.chat.server.services.model.room.Presence;
+import com.ragnaroh.chat.server.services.model.room.PresenceChange;
 import com.ragnaroh.chat.server.services.model.room.Room;
 import com.ragnaroh.chat.server.services.model.room.RoomLite;
 import com.ragnaroh.chat.server.services.model.room.event.Event;
@@ -10,9 +15,12 @@ public interface RoomService {
 
    public String createRoom(String name);
 
+   // The room with all its users, without the history
    public Room getRoom(String roomId);
 
-   public List<String> getActiveUsers(String roomId);
+   public String getRoomName(String roomId);
+
+   public Presence getPresence(String roomId);
 
    public List<Event> getEvents(String roomId);
 
@@ -20,12 +28,27 @@ public interface RoomService {
 
    public boolean readdUser(String roomId, String userId);
 
-   public Event activateUser(String roomId, String userId);
+   public PresenceChange activateUser(String roomId, String userId);
+
+   public PresenceChange deactivateUser(String roomId, String userId);
+
+   // Deactivates the users of each room in one transaction per room, returning a single change per room. Users still
+   // connected to another node of the cluster stay ACTIVE, and are only dropped from this node. Rooms that fail are
+   // logged and left out.
+   public Map<String, PresenceChange> deactivateUsers(Map<String, ? extends Collection<String>> userIdsPerRoom);
+
+   public PresenceChange applyRemoteEvent(String nodeId, String roomId, Event event);
 
-   public Event deactivateUser(String roomId, String userId);
+   public Map<String, PresenceChange> replaceRemotePresence(String nodeId, Map<String, List<String>> usersPerRoom);
+
+   public Map<String, List<String>> getLocalPresence();
 
    public Event addMessage(String roomId, String userId, String text);
 
+   public CompletableFuture<Event> addMessageAsync(String roomId, String userId, String text);
+
+   public Map<String, Integer> getRoomQueueDepths();
+
    public List<RoomLite> getRoomsLite();
 
 }
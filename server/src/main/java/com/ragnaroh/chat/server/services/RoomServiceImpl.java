@@ -1,22 +1,37 @@
 package com.ragnaroh.chat.server.services;
 
+import static java.util.stream.Collectors.toList;
+
 import static com.ragnaroh.chat.server.services.InputValidation.requireInputLength;
 import static com.ragnaroh.chat.server.services.InputValidation.requireInputMatches;
 import static com.ragnaroh.chat.server.services.InputValidation.requireInputNotNull;
 import static com.ragnaroh.chat.server.services.InputValidation.requireInputTrimmed;
-import static org.apache.commons.lang3.ObjectUtils.defaultIfNull;
 
 import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Supplier;
 
 import org.apache.commons.lang3.RandomStringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.support.TransactionTemplate;
 
 import com.ragnaroh.chat.server.common.exceptions.IllegalInputException;
 import com.ragnaroh.chat.server.common.exceptions.NotFoundException;
+import com.ragnaroh.chat.server.services.model.room.Presence;
+import com.ragnaroh.chat.server.services.model.room.PresenceChange;
 import com.ragnaroh.chat.server.services.model.room.Room;
 import com.ragnaroh.chat.server.services.model.room.RoomLite;
 import com.ragnaroh.chat.server.services.model.room.event.Event;
@@ -26,18 +41,28 @@ public class RoomServiceImpl implements RoomService {
 
    private static final String VALID_NAME_REGEX = "[\\p{Alnum}_\\- ]+";
 
-   private final SynchronizedExecutor<String> synchronizedExecutor = new SynchronizedExecutor<>();
+   private final Logger logger = LoggerFactory.getLogger(this.getClass());
 
+   @Autowired
+   private KeyedExecutor<String> roomExecutor;
    @Autowired
    private RoomDao roomDao;
    @Autowired
+   private RoomEventCache eventCache;
+   @Autowired
+   private EventSequenceAllocator sequenceAllocator;
+   @Autowired
+   private EventStore eventStore;
+   @Autowired
+   private PresenceRegistry presenceRegistry;
+   @Autowired
    private TransactionTemplate transactionTemplate;
    @Autowired
    private UserDao userDao;
 
    @Override
    public List<RoomLite> getRoomsLite() {
-      return roomDao.fetchRoomsLite();
+      return presenceRegistry.getRoomsLite();
    }
 
    @Override
@@ -52,6 +77,7 @@ public class RoomServiceImpl implements RoomService {
       var id = RandomStringUtils.randomAlphanumeric(6);
       if (!roomDao.roomExists(id)) {
          roomDao.insertRoom(id, name);
+         eventStore.initialize(id);
          return id;
       }
       return registerRoom(name);
@@ -59,21 +85,44 @@ public class RoomServiceImpl implements RoomService {
 
    @Override
    public Room getRoom(String roomId) {
-      Room room = roomDao.fetchRoom(roomId);
-      if (room == null) {
+      return Room
+            .builder()
+            .id(roomId)
+            .name(getRoomName(roomId))
+            .users(roomDao.fetchUsers(roomId))
+            .build();
+   }
+
+   @Override
+   public String getRoomName(String roomId) {
+      String name = roomDao.fetchRoomName(roomId);
+      if (name == null) {
          throw new NotFoundException("No room with id {}", roomId);
       }
-      return room;
+      return name;
    }
 
    @Override
-   public List<String> getActiveUsers(String roomId) {
-      return roomDao.fetchActiveUsers(roomId);
+   public Presence getPresence(String roomId) {
+      return presenceRegistry.getPresence(roomId);
    }
 
    @Override
    public List<Event> getEvents(String roomId) {
-      return roomDao.fetchEvents(roomId);
+      List<Event> events = eventCache.get(roomId);
+      if (events != null) {
+         return events;
+      }
+      return roomExecutor.execute(roomId, () -> {
+         // Another subscriber may have loaded the events while we were waiting for the lock
+         List<Event> cachedEvents = eventCache.get(roomId);
+         if (cachedEvents != null) {
+            return cachedEvents;
+         }
+         List<Event> fetchedEvents = eventStore.read(roomId);
+         eventCache.put(roomId, fetchedEvents);
+         return fetchedEvents;
+      });
    }
 
    @Override
@@ -84,7 +133,7 @@ public class RoomServiceImpl implements RoomService {
       requireInputLength("username", username, 1, 16);
       requireInputMatches("username", username, VALID_NAME_REGEX);
       int userKey = getUserKey(userId);
-      return synchronizedExecutor.execute(roomId, () -> {
+      return roomExecutor.execute(roomId, () -> {
          Room.User user = roomDao.fetchUser(roomId, userId);
          if (user != null
                && (user.getStatus() == Room.User.Status.PENDING || user.getStatus() == Room.User.Status.ACTIVE)) {
@@ -97,6 +146,8 @@ public class RoomServiceImpl implements RoomService {
             roomDao.insertPendingUser(roomId, userKey, username);
          } else {
             roomDao.updateUsernameAndStatus(roomId, userKey, username, Room.User.Status.PENDING);
+            // Events are read with the current username of their user, so the cached ones are now stale
+            eventCache.invalidate(roomId);
          }
          return true;
       });
@@ -114,7 +165,7 @@ public class RoomServiceImpl implements RoomService {
    public boolean readdUser(String roomId, String userId) {
       requireInputNotNull("roomId", roomId);
       requireInputNotNull("userId", userId);
-      return synchronizedExecutor.execute(roomId, () -> {
+      return roomExecutor.execute(roomId, () -> {
          Room.User user = roomDao.fetchUser(roomId, userId);
          if (user == null) {
             return false;
@@ -131,54 +182,236 @@ public class RoomServiceImpl implements RoomService {
    }
 
    @Override
-   public Event activateUser(String roomId, String userId) {
-      return synchronizedExecutor.execute(roomId, () -> {
+   public PresenceChange activateUser(String roomId, String userId) {
+      return roomExecutor.execute(roomId, () -> {
          Room.User user = roomDao.fetchUser(roomId, userId);
          if (user == null) {
             throw new NotFoundException("User with ID <{}> is not in room with ID <{}>.", userId, roomId);
          }
          if (user.getStatus() == Room.User.Status.PENDING) {
-            return tx(() -> {
-               roomDao.updateUserStatus(roomId, userId, Room.User.Status.ACTIVE);
-               int sequenceNumber = getNextSequenceNumber(roomId);
-               roomDao.insertJoinedEvent(roomId, sequenceNumber, userId, LocalDateTime.now());
-               return roomDao.fetchEvent(roomId, sequenceNumber);
-            });
+            Event event = appendEvent(roomId,
+                                      userId,
+                                      Event.Joined.builder().username(user.getUsername()),
+                                      () -> roomDao.updateUserStatus(roomId, userId, Room.User.Status.ACTIVE));
+            long version = presenceRegistry.activate(roomId, user.getUsername());
+            return PresenceChange
+                  .builder()
+                  .event(event)
+                  .fromVersion(version - 1)
+                  .version(version)
+                  .added(List.of(user.getUsername()))
+                  .build();
+         }
+         if (user.getStatus() == Room.User.Status.ACTIVE) {
+            // Already joined, possibly through another node that has since left the cluster along with its users
+            return presenceRegistry.reactivate(roomId, user.getUsername());
          }
          return null;
       });
    }
 
    @Override
-   public Event deactivateUser(String roomId, String userId) {
-      return synchronizedExecutor.execute(roomId, () -> {
+   public PresenceChange deactivateUser(String roomId, String userId) {
+      return roomExecutor.execute(roomId, () -> {
          Room.User user = roomDao.fetchUser(roomId, userId);
          if (user == null) {
             throw new NotFoundException("User with ID <{}> is not in room with ID <{}>.", userId, roomId);
          }
-         if (user.getStatus() == Room.User.Status.ACTIVE) {
-            return tx(() -> {
-               roomDao.updateUserStatus(roomId, userId, Room.User.Status.INACTIVE);
-               int sequenceNumber = getNextSequenceNumber(roomId);
-               roomDao.insertPartedEvent(roomId, sequenceNumber, userId, LocalDateTime.now());
-               return roomDao.fetchEvent(roomId, sequenceNumber);
+         return deactivateUsersInRoom(roomId, Map.of(userId, user));
+      });
+   }
+
+   @Override
+   public Map<String, PresenceChange> deactivateUsers(Map<String, ? extends Collection<String>> userIdsPerRoom) {
+      var changes = new HashMap<String, PresenceChange>();
+      userIdsPerRoom.forEach((roomId, userIds) -> {
+         try {
+            PresenceChange change = roomExecutor.execute(roomId, () -> {
+               Map<String, Room.User> fetchedUsers = roomDao.fetchUsers(roomId, userIds);
+               // Users who are not in the room are left out, the others keep their order
+               var users = new LinkedHashMap<String, Room.User>();
+               userIds.stream().filter(fetchedUsers::containsKey).forEach(id -> users.put(id, fetchedUsers.get(id)));
+               return deactivateUsersInRoom(roomId, users);
             });
+            if (change != null) {
+               changes.put(roomId, change);
+            }
+         } catch (RuntimeException e) {
+            // The other rooms are independent of it
+            logger.error("Failed to deactivate users {} in room {}", userIds, roomId, e);
+         }
+      });
+      return changes;
+   }
+
+   // Must be called while holding the room lock, for users of the room by user ID. Updates and appends for all users
+   // at once. Only users no other node has are parted, the others are dropped from this node alone.
+   private PresenceChange deactivateUsersInRoom(String roomId, Map<String, Room.User> users) {
+      var eventBuilders = new LinkedHashMap<String, Event.Builder<?, ?>>();
+      var withdrawn = new ArrayList<String>();
+      users.forEach((userId, user) -> {
+         if (user.getStatus() == Room.User.Status.ACTIVE
+               && !presenceRegistry.isPresentElsewhere(roomId, user.getUsername())) {
+            eventBuilders.put(userId, Event.Parted.builder().username(user.getUsername()));
+         } else {
+            // Still in the room through another node, or parted by one while also connected to this one
+            withdrawn.add(user.getUsername());
          }
-         return null;
       });
+      List<Event> events = eventBuilders.isEmpty()
+            ? List.of()
+            : appendEvents(roomId,
+                           eventBuilders,
+                           () -> roomDao.updateUserStatuses(roomId, eventBuilders.keySet(), Room.User.Status.INACTIVE));
+      List<String> parted = events.stream().map(Event::getUsername).collect(toList());
+      PresenceChange change = presenceRegistry.deactivate(roomId, parted, withdrawn);
+      if (events.isEmpty()) {
+         return change;
+      }
+      if (change == null) {
+         // Parted users no longer present, such as those left ACTIVE by a node that went away, change nothing but
+         // their events still go out
+         long version = presenceRegistry.getPresence(roomId).getVersion();
+         return PresenceChange.builder().events(events).fromVersion(version).version(version).build();
+      }
+      return PresenceChange
+            .builder()
+            .events(events)
+            .fromVersion(change.getFromVersion())
+            .version(change.getVersion())
+            .removed(change.getRemoved())
+            .build();
    }
 
    @Override
-   public Event addMessage(String roomId, String userId, String text) {
-      return synchronizedExecutor.execute(roomId, () -> {
-         int sequenceNumber = getNextSequenceNumber(roomId);
-         roomDao.insertMessageEvent(roomId, sequenceNumber, userId, text, LocalDateTime.now());
-         return roomDao.fetchEvent(roomId, sequenceNumber);
+   public PresenceChange applyRemoteEvent(String nodeId, String roomId, Event event) {
+      return roomExecutor.execute(roomId, () -> {
+         sequenceAllocator.advance(roomId, event.getSequenceNumber());
+         if (event.getType() == Event.Type.JOINED) {
+            // The user may have rejoined under a new name, which the cached events do not show
+            eventCache.invalidate(roomId);
+         } else {
+            eventCache.append(roomId, event);
+         }
+         return switch (event.getType()) {
+         case JOINED -> {
+            long version = presenceRegistry.activateRemote(roomId, nodeId, event.getUsername());
+            yield PresenceChange
+                  .builder()
+                  .event(event)
+                  .fromVersion(version - 1)
+                  .version(version)
+                  .added(List.of(event.getUsername()))
+                  .build();
+         }
+         case PARTED -> {
+            // Only the sending node has let go of the user, who may still be connected to another one
+            PresenceChange change = presenceRegistry.deactivateRemote(roomId, nodeId, event.getUsername());
+            yield change == null
+                  ? null
+                  : PresenceChange
+                        .builder()
+                        .event(event)
+                        .fromVersion(change.getFromVersion())
+                        .version(change.getVersion())
+                        .removed(change.getRemoved())
+                        .build();
+         }
+         case MESSAGE -> null;
+         };
       });
    }
 
-   private int getNextSequenceNumber(String roomId) {
-      return defaultIfNull(roomDao.fetchMaxEventSequenceNumber(roomId), 0) + 1;
+   @Override
+   public Map<String, PresenceChange> replaceRemotePresence(String nodeId, Map<String, List<String>> usersPerRoom) {
+      // Rooms the node no longer has users in are cleared as well
+      Set<String> roomIds = new HashSet<>(usersPerRoom.keySet());
+      roomIds.addAll(presenceRegistry.getRoomIds(nodeId));
+      var changes = new HashMap<String, PresenceChange>();
+      for (String roomId : roomIds) {
+         List<String> usernames = usersPerRoom.getOrDefault(roomId, List.of());
+         PresenceChange change = roomExecutor
+               .execute(roomId, () -> presenceRegistry.replaceRemote(roomId, nodeId, usernames));
+         if (change != null) {
+            changes.put(roomId, change);
+         }
+      }
+      return changes;
+   }
+
+   @Override
+   public Map<String, List<String>> getLocalPresence() {
+      return presenceRegistry.getLocalUsers();
+   }
+
+   @Override
+   public Event addMessage(String roomId, String userId, String text) {
+      return roomExecutor.execute(roomId, () -> appendMessage(roomId, userId, text));
+   }
+
+   @Override
+   public CompletableFuture<Event> addMessageAsync(String roomId, String userId, String text) {
+      return roomExecutor.submit(roomId, () -> appendMessage(roomId, userId, text));
+   }
+
+   @Override
+   public Map<String, Integer> getRoomQueueDepths() {
+      return roomExecutor.getQueueDepths();
+   }
+
+   private Event appendMessage(String roomId, String userId, String text) {
+      String username = roomDao.fetchUsername(roomId, userId);
+      if (username == null) {
+         throw new NotFoundException("User with ID <{}> is not in room with ID <{}>.", userId, roomId);
+      }
+      return appendEvent(roomId, userId, Event.Message.builder().text(text).username(username), () -> {});
+   }
+
+   // Must be called while holding the room lock. The event is appended in the same transaction as the user update,
+   // which makes the JDBC store write both atomically unless its event journal is enabled.
+   private Event appendEvent(String roomId, String userId, Event.Builder<?, ?> eventBuilder, Runnable userUpdate) {
+      return appendEvents(roomId, Map.of(userId, eventBuilder), userUpdate).get(0);
+   }
+
+   // Must be called while holding the room lock. Appends an event for each user, in iteration order, all in the same
+   // transaction as the user update.
+   private List<Event> appendEvents(String roomId,
+                                    Map<String, Event.Builder<?, ?>> eventBuilders,
+                                    Runnable userUpdate) {
+      try {
+         return appendEventsOnce(roomId, eventBuilders, userUpdate);
+      } catch (DuplicateKeyException e) {
+         // Another node of the cluster took the sequence number before its event reached this node. Reseeding from the
+         // store gets past it.
+         return appendEventsOnce(roomId, eventBuilders, userUpdate);
+      }
+   }
+
+   private List<Event> appendEventsOnce(String roomId,
+                                        Map<String, Event.Builder<?, ?>> eventBuilders,
+                                        Runnable userUpdate) {
+      var events = new LinkedHashMap<String, Event>();
+      LocalDateTime timestamp = now();
+      eventBuilders.forEach((userId, eventBuilder) -> events
+            .put(userId, eventBuilder.sequenceNumber(sequenceAllocator.next(roomId)).timestamp(timestamp).build()));
+      try {
+         tx(() -> {
+            userUpdate.run();
+            eventStore.appendAll(roomId, events);
+            return null;
+         });
+      } catch (RuntimeException e) {
+         sequenceAllocator.reset(roomId);
+         throw e;
+      }
+      events.values().forEach(event -> eventCache.append(roomId, event));
+      return List.copyOf(events.values());
+   }
+
+   private static LocalDateTime now() {
+      // Truncated to what the database stores, so that events handed out before being read back are identical to the
+      // ones read from the database
+      return LocalDateTime.now().truncatedTo(ChronoUnit.MICROS);
    }
 
    private <T> T tx(Supplier<T> supplier) {
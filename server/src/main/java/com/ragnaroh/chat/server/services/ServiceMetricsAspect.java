@@ -0,0 +1,139 @@
+package com.ragnaroh.chat.server.services;
+
+import static java.lang.String.format;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.ragnaroh.chat.server.services.metrics.MetricsRegistry;
+import com.ragnaroh.chat.server.services.metrics.OperationMetrics;
+
+// Records latency, errors and in-flight calls for every @Service call. A sample of the calls can also be logged with
+// their arguments and results, which is too expensive to do for all of them.
+@Aspect
+@Component
+public class ServiceMetricsAspect {
+
+   private final Map<Method, OperationMetrics> operations = new ConcurrentHashMap<>();
+
+   // Fraction of calls to log, zero disables logging
+   @Value("${chat.service-logging.sample-rate:0}")
+   private double loggingSampleRate;
+
+   @Autowired
+   private MetricsRegistry metricsRegistry;
+
+   @Around("@within(org.springframework.stereotype.Service)")
+   public Object recordInvocation(ProceedingJoinPoint joinPoint) throws Throwable {
+      OperationMetrics operation = operation(joinPoint);
+      Logger logger = sampleLogger(joinPoint);
+      if (logger != null) {
+         logStart(logger, joinPoint);
+      }
+      long start = operation.start();
+      Object result;
+      try {
+         result = joinPoint.proceed();
+      } catch (Throwable t) {
+         long duration = operation.stop(start, true);
+         if (logger != null) {
+            logEnd(logger, duration, "throwing " + throwSummary(t));
+         }
+         throw t;
+      }
+      if (result instanceof CompletionStage) {
+         // Asynchronous operations are recorded when they complete
+         ((CompletionStage<?>) result).whenComplete((value, error) -> operation.stop(start, error != null));
+      } else {
+         long duration = operation.stop(start, false);
+         if (logger != null) {
+            logEnd(logger, duration, result == null ? "no return value" : "returning " + returnSummary(result));
+         }
+      }
+      return result;
+   }
+
+   private OperationMetrics operation(ProceedingJoinPoint joinPoint) {
+      Method method = ((MethodSignature) joinPoint.getSignature()).getMethod();
+      OperationMetrics operation = operations.get(method);
+      if (operation == null) {
+         String service = joinPoint.getTarget().getClass().getSimpleName();
+         operation = operations.computeIfAbsent(method, m -> metricsRegistry.operation(service, m.getName()));
+      }
+      return operation;
+   }
+
+   // Returns null unless the call is sampled for logging
+   private Logger sampleLogger(ProceedingJoinPoint joinPoint) {
+      if (loggingSampleRate <= 0 || ThreadLocalRandom.current().nextDouble() >= loggingSampleRate) {
+         return null;
+      }
+      Logger logger = LoggerFactory.getLogger(joinPoint.getTarget().getClass());
+      return logger.isDebugEnabled() ? logger : null;
+   }
+
+   private static void logStart(Logger logger, ProceedingJoinPoint joinPoint) {
+      logger
+            .debug("START: operation[{}] args[{}]",
+                   joinPoint.getSignature().getName(),
+                   argsToString(joinPoint.getArgs()));
+   }
+
+   private static String argsToString(Object[] args) {
+      return Stream.of(args).map(ServiceMetricsAspect::argToString).collect(Collectors.joining(","));
+   }
+
+   private static String argToString(Object arg) {
+      if (arg == null) {
+         return "<null>";
+      }
+      if (arg.getClass().isArray()) {
+         return String.valueOf(List.of((Object[]) arg));
+      }
+      return String.valueOf(arg);
+   }
+
+   private static void logEnd(Logger logger, long durationNanos, String summary) {
+      logger.debug("END: execution took {} us, {}", durationNanos / 1000, summary);
+   }
+
+   private String returnSummary(Object result) {
+      Class<?> resultType = result.getClass();
+      if (resultType.isArray()) {
+         return format("Array of length <%d>", Array.getLength(result));
+      }
+      if (result instanceof Collection) {
+         return format("Collection of size <%d>", ((Collection<?>) result).size());
+      }
+      if (result instanceof Map) {
+         return format("Map of size <%d>", ((Map<?, ?>) result).size());
+      }
+      if (result instanceof Boolean || result instanceof Integer) {
+         return format("<%s>", result);
+      }
+      return resultType.getSimpleName() + " instance";
+   }
+
+   private String throwSummary(Throwable throwable) {
+      return format("%s with message %s", throwable.getClass().getSimpleName(), throwable.getMessage());
+   }
+
+}
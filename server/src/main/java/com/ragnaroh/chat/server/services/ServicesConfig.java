@@ -1,16 +1,24 @@
 package com.ragnaroh.chat.server.services;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.h2.H2ConsoleAutoConfiguration;
 import org.springframework.boot.autoconfigure.jdbc.DataSourceAutoConfiguration;
 import org.springframework.boot.autoconfigure.jdbc.DataSourceTransactionManagerAutoConfiguration;
 import org.springframework.boot.autoconfigure.jdbc.JdbcTemplateAutoConfiguration;
 import org.springframework.boot.autoconfigure.transaction.TransactionAutoConfiguration;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.EnableAspectJAutoProxy;
 import org.springframework.context.annotation.Import;
 import org.springframework.transaction.annotation.EnableTransactionManagement;
 
+import com.ragnaroh.chat.server.services.cluster.ClusterRelay;
+import com.ragnaroh.chat.server.services.cluster.ClusterRelayType;
+import com.ragnaroh.chat.server.services.cluster.LocalClusterRelay;
+import com.ragnaroh.chat.server.services.cluster.TcpClusterRelay;
+import com.ragnaroh.chat.server.services.metrics.MetricsRegistry;
+
 @Configuration
 @ComponentScan
 @EnableAspectJAutoProxy
@@ -20,4 +28,39 @@ import org.springframework.transaction.annotation.EnableTransactionManagement;
           DataSourceTransactionManagerAutoConfiguration.class,
           TransactionAutoConfiguration.class,
           H2ConsoleAutoConfiguration.class })
-public class ServicesConfig {}
+public class ServicesConfig {
+
+   @Bean
+   public KeyedExecutor<String> roomExecutor(@Value("${chat.room-executor.model:synchronized}") RoomExecutionModel model,
+                                             @Value("${chat.room-executor.threads:0}") int threads,
+                                             MetricsRegistry metricsRegistry) {
+      KeyedExecutor<String> executor = switch (model) {
+      // Zero means one thread per available processor
+      case MAILBOX -> new MailboxExecutor<>(threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+      case SYNCHRONIZED -> new SynchronizedExecutor<>();
+      };
+      metricsRegistry
+            .gauge("chat_room_queue_depth",
+                   "Room actions waiting or running, for rooms that have any",
+                   "room",
+                   executor::getQueueDepths);
+      return executor;
+   }
+
+   @Bean
+   public EventStore eventStore(@Value("${chat.event-store.type:jdbc}") EventStoreType type) {
+      return switch (type) {
+      case FILE -> new FileEventStore();
+      case JDBC -> new JdbcEventStore();
+      };
+   }
+
+   @Bean
+   public ClusterRelay clusterRelay(@Value("${chat.cluster.relay:none}") ClusterRelayType type) {
+      return switch (type) {
+      case NONE -> new LocalClusterRelay();
+      case TCP -> new TcpClusterRelay();
+      };
+   }
+
+}
@@ -1,14 +1,17 @@
 package com.ragnaroh.chat.server.services;
 
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
-public final class SynchronizedExecutor<L> {
+public final class SynchronizedExecutor<L> implements KeyedExecutor<L> {
 
    private final Map<L, CounterLock> locks = new ConcurrentHashMap<>();
 
+   @Override
    public void execute(L lock, Runnable action) {
       execute(lock, () -> {
          action.run();
@@ -16,6 +19,7 @@ public final class SynchronizedExecutor<L> {
       });
    }
 
+   @Override
    public <R> R execute(L lock, Supplier<R> action) {
       CounterLock cl = locks.compute(lock, (k, v) -> v == null ? new CounterLock() : v.increment());
       synchronized (cl) {
@@ -30,6 +34,24 @@ public final class SynchronizedExecutor<L> {
       }
    }
 
+   // Runs the action on the calling thread, so the returned future is always completed
+   @Override
+   public <R> CompletableFuture<R> submit(L lock, Supplier<R> action) {
+      try {
+         return CompletableFuture.completedFuture(execute(lock, action));
+      } catch (RuntimeException e) {
+         return CompletableFuture.failedFuture(e);
+      }
+   }
+
+   @Override
+   public Map<L, Integer> getQueueDepths() {
+      return locks
+            .entrySet()
+            .stream()
+            .collect(Collectors.toMap(Map.Entry::getKey, entry -> entry.getValue().remaining.get()));
+   }
+
    private static final class CounterLock {
 
       private AtomicInteger remaining = new AtomicInteger(1);
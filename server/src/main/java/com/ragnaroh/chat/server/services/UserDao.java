@@ -2,21 +2,41 @@ package com.ragnaroh.chat.server.services;
 
 import java.util.Map;
 
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Repository;
 
+import com.ragnaroh.chat.server.common.exceptions.NotFoundException;
+
 @Repository
-public class UserDao extends Dao {
+public class UserDao extends Dao implements InitializingBean {
+
+   @Value("${chat.key-cache.max-users:100000}")
+   private int keyCacheSize;
+
+   private KeyCache keys;
+
+   @Override
+   public void afterPropertiesSet() {
+      keys = new KeyCache(keyCacheSize);
+   }
 
    Integer getKeyOrNull(String id) {
-      return queryForNullableInteger("SELECT KEY FROM User WHERE ID = :id", Map.of("id", id));
+      return keys.get(id, uid -> queryForNullableInteger("SELECT KEY FROM User WHERE ID = :id", Map.of("id", uid)));
    }
 
    int getKey(String id) {
-      return queryForInteger("SELECT KEY FROM User WHERE ID = :id", Map.of("id", id));
+      Integer key = getKeyOrNull(id);
+      if (key == null) {
+         throw new NotFoundException("No user with ID <{}>", id);
+      }
+      return key;
    }
 
    int insertUser(String id) {
-      return updateAndReturnId("INSERT INTO User (`ID`) VALUES (:id)", Map.of("id", id));
+      int key = updateAndReturnId("INSERT INTO User (`ID`) VALUES (:id)", Map.of("id", id));
+      keys.put(id, key);
+      return key;
    }
 
 }
@@ -0,0 +1,65 @@
+package com.ragnaroh.chat.server.services.cluster;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.List;
+import java.util.Map;
+
+import com.ragnaroh.chat.server.services.model.room.event.Event;
+
+public final class ClusterMessage {
+
+   public enum Type {
+      // An event appended to a room by the publishing node
+      EVENT,
+      // The users present on the publishing node, per room, replacing whatever it published before
+      PRESENCE
+   }
+
+   private final Type type;
+   private final String nodeId;
+   private final String roomId;
+   private final Event event;
+   private final Map<String, List<String>> usersPerRoom;
+
+   private ClusterMessage(Type type,
+                          String nodeId,
+                          String roomId,
+                          Event event,
+                          Map<String, List<String>> usersPerRoom) {
+      this.type = requireNonNull(type);
+      this.nodeId = requireNonNull(nodeId);
+      this.roomId = roomId;
+      this.event = event;
+      this.usersPerRoom = usersPerRoom;
+   }
+
+   public static ClusterMessage event(String nodeId, String roomId, Event event) {
+      return new ClusterMessage(Type.EVENT, nodeId, requireNonNull(roomId), requireNonNull(event), null);
+   }
+
+   public static ClusterMessage presence(String nodeId, Map<String, List<String>> usersPerRoom) {
+      return new ClusterMessage(Type.PRESENCE, nodeId, null, null, requireNonNull(usersPerRoom));
+   }
+
+   public Type getType() {
+      return type;
+   }
+
+   public String getNodeId() {
+      return nodeId;
+   }
+
+   public String getRoomId() {
+      return roomId;
+   }
+
+   public Event getEvent() {
+      return event;
+   }
+
+   public Map<String, List<String>> getUsersPerRoom() {
+      return usersPerRoom;
+   }
+
+}
@@ -0,0 +1,100 @@
+package com.ragnaroh.chat.server.services.cluster;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.ragnaroh.chat.server.services.model.room.event.Event;
+
+// Binary encoding of cluster messages. Only nodes running the same version talk to each other, so the format carries
+// no version of its own.
+final class ClusterMessageCodec {
+
+   private ClusterMessageCodec() {}
+
+   static byte[] encode(ClusterMessage message) {
+      var bytes = new ByteArrayOutputStream();
+      try (var out = new DataOutputStream(bytes)) {
+         out.writeByte(message.getType().ordinal());
+         out.writeUTF(message.getNodeId());
+         switch (message.getType()) {
+         case EVENT -> {
+            out.writeUTF(message.getRoomId());
+            writeEvent(out, message.getEvent());
+         }
+         case PRESENCE -> {
+            out.writeInt(message.getUsersPerRoom().size());
+            for (var entry : message.getUsersPerRoom().entrySet()) {
+               out.writeUTF(entry.getKey());
+               out.writeInt(entry.getValue().size());
+               for (String username : entry.getValue()) {
+                  out.writeUTF(username);
+               }
+            }
+         }
+         }
+      } catch (IOException e) {
+         throw new UncheckedIOException(e);
+      }
+      return bytes.toByteArray();
+   }
+
+   static ClusterMessage decode(byte[] bytes) throws IOException {
+      var in = new DataInputStream(new ByteArrayInputStream(bytes));
+      ClusterMessage.Type type = ClusterMessage.Type.values()[in.readUnsignedByte()];
+      String nodeId = in.readUTF();
+      return switch (type) {
+      case EVENT -> ClusterMessage.event(nodeId, in.readUTF(), readEvent(in));
+      case PRESENCE -> {
+         int roomCount = in.readInt();
+         Map<String, List<String>> usersPerRoom = new HashMap<>();
+         for (int i = 0; i < roomCount; i++) {
+            String roomId = in.readUTF();
+            int userCount = in.readInt();
+            List<String> users = new ArrayList<>(userCount);
+            for (int j = 0; j < userCount; j++) {
+               users.add(in.readUTF());
+            }
+            usersPerRoom.put(roomId, users);
+         }
+         yield ClusterMessage.presence(nodeId, usersPerRoom);
+      }
+      };
+   }
+
+   private static void writeEvent(DataOutput out, Event event) throws IOException {
+      out.writeByte(event.getType().ordinal());
+      out.writeInt(event.getSequenceNumber());
+      out.writeLong(event.getTimestamp().toEpochSecond(ZoneOffset.UTC));
+      out.writeInt(event.getTimestamp().getNano());
+      out.writeUTF(event.getUsername());
+      if (event instanceof Event.Message) {
+         out.writeUTF(((Event.Message) event).getText());
+      }
+   }
+
+   private static Event readEvent(DataInput in) throws IOException {
+      Event.Type type = Event.Type.values()[in.readUnsignedByte()];
+      int sequenceNumber = in.readInt();
+      LocalDateTime timestamp = LocalDateTime.ofEpochSecond(in.readLong(), in.readInt(), ZoneOffset.UTC);
+      String username = in.readUTF();
+      Event.Builder<?, ?> builder = switch (type) {
+      case MESSAGE -> Event.Message.builder().text(in.readUTF());
+      case JOINED -> Event.Joined.builder();
+      case PARTED -> Event.Parted.builder();
+      };
+      return builder.sequenceNumber(sequenceNumber).username(username).timestamp(timestamp).build();
+   }
+
+}
@@ -0,0 +1,26 @@
+package com.ragnaroh.chat.server.services.cluster;
+
+// Publish/subscribe between the nodes of a cluster. Messages published by one node reach every other node that is
+// connected to it, in the order they were published. Nothing is redelivered after a connection is lost: a node that
+// reconnects is expected to republish its state instead.
+public interface ClusterRelay {
+
+   public String getNodeId();
+
+   public void publish(ClusterMessage message);
+
+   public void addListener(Listener listener);
+
+   public interface Listener {
+
+      public void onMessage(ClusterMessage message);
+
+      // A connection to another node has been established, which may have missed earlier messages from this node
+      public void onConnected();
+
+      // Another node has gone away, whatever it published about its state no longer holds
+      public void onNodeLeft(String nodeId);
+
+   }
+
+}
@@ -0,0 +1,10 @@
+package com.ragnaroh.chat.server.services.cluster;
+
+public enum ClusterRelayType {
+
+   // Single node, nothing is relayed
+   NONE,
+   // Full mesh of TCP connections between the nodes listed as peers
+   TCP
+
+}
@@ -0,0 +1,17 @@
+package com.ragnaroh.chat.server.services.cluster;
+
+// The relay of a node running on its own
+public class LocalClusterRelay implements ClusterRelay {
+
+   @Override
+   public String getNodeId() {
+      return "local";
+   }
+
+   @Override
+   public void publish(ClusterMessage message) {}
+
+   @Override
+   public void addListener(Listener listener) {}
+
+}
@@ -0,0 +1,256 @@
+package com.ragnaroh.chat.server.services.cluster;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+
+import org.apache.commons.lang3.RandomStringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+// Full mesh of TCP connections. Every node connects to each of its peers and writes what it publishes to those
+// connections, while reading what the peers publish from the connections they made to it. A connection starts with
+// the node id of the connecting node, followed by length-prefixed messages.
+public class TcpClusterRelay implements ClusterRelay, InitializingBean, DisposableBean {
+
+   private static final int MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+   private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+
+   private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+   private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+   private final List<Peer> peers = new ArrayList<>();
+   private final Map<String, Socket> inboundPerNode = new ConcurrentHashMap<>();
+
+   @Value("${chat.cluster.node-id:}")
+   private String nodeIdProperty;
+   @Value("${chat.cluster.tcp.port:7400}")
+   private int port;
+   // Comma separated host:port pairs, the address of this node itself may be included
+   @Value("${chat.cluster.tcp.peers:}")
+   private String peersProperty;
+   @Value("${chat.cluster.tcp.reconnect-interval:1s}")
+   private Duration reconnectInterval;
+   @Value("${chat.cluster.tcp.max-queued-messages:10000}")
+   private int maxQueuedMessages;
+
+   private String nodeId;
+   private ServerSocket serverSocket;
+   private ExecutorService threads;
+   private volatile boolean closed;
+
+   @Override
+   public void afterPropertiesSet() throws IOException {
+      nodeId = nodeIdProperty.isBlank() ? RandomStringUtils.randomAlphanumeric(8) : nodeIdProperty.trim();
+      serverSocket = new ServerSocket(port);
+      var threadFactory = new CustomizableThreadFactory("cluster-relay-");
+      threadFactory.setDaemon(true);
+      threads = Executors.newCachedThreadPool(threadFactory);
+      threads.execute(this::accept);
+      for (String address : peersProperty.split(",")) {
+         if (address.isBlank()) {
+            continue;
+         }
+         int separator = address.lastIndexOf(':');
+         String host = address.substring(0, separator).trim();
+         int peerPort = Integer.parseInt(address.substring(separator + 1).trim());
+         if (!isOwnAddress(host, peerPort)) {
+            var peer = new Peer(new InetSocketAddress(host, peerPort));
+            peers.add(peer);
+            threads.execute(peer);
+         }
+      }
+      logger.info("Cluster node {} listening on port {}, with {} peers", nodeId, port, peers.size());
+   }
+
+   @Override
+   public void destroy() {
+      closed = true;
+      closeQuietly(serverSocket);
+      peers.forEach(peer -> closeQuietly(peer.socket));
+      inboundPerNode.values().forEach(TcpClusterRelay::closeQuietly);
+      threads.shutdownNow();
+   }
+
+   @Override
+   public String getNodeId() {
+      return nodeId;
+   }
+
+   @Override
+   public void publish(ClusterMessage message) {
+      if (peers.isEmpty()) {
+         return;
+      }
+      byte[] bytes = ClusterMessageCodec.encode(message);
+      for (Peer peer : peers) {
+         peer.offer(bytes);
+      }
+   }
+
+   @Override
+   public void addListener(Listener listener) {
+      listeners.add(listener);
+   }
+
+   private boolean isOwnAddress(String host, int peerPort) {
+      if (peerPort != port) {
+         return false;
+      }
+      try {
+         InetAddress address = InetAddress.getByName(host);
+         return address.isLoopbackAddress()
+               || address.isAnyLocalAddress()
+               || NetworkInterface.getByInetAddress(address) != null;
+      } catch (IOException e) {
+         return false;
+      }
+   }
+
+   private void accept() {
+      while (!closed) {
+         try {
+            Socket socket = serverSocket.accept();
+            threads.execute(() -> read(socket));
+         } catch (IOException e) {
+            if (!closed) {
+               logger.error("Failed to accept cluster connection", e);
+            }
+         }
+      }
+   }
+
+   private void read(Socket socket) {
+      String remoteNodeId = null;
+      try (socket; var in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+         remoteNodeId = in.readUTF();
+         // A node that reconnects replaces its previous connection, which may not have noticed yet that it is gone
+         closeQuietly(inboundPerNode.put(remoteNodeId, socket));
+         logger.info("Cluster node {} connected from {}", remoteNodeId, socket.getRemoteSocketAddress());
+         while (true) {
+            int size = in.readInt();
+            if (size < 0 || size > MAX_MESSAGE_SIZE) {
+               throw new IOException("Invalid cluster message size " + size);
+            }
+            byte[] bytes = new byte[size];
+            in.readFully(bytes);
+            ClusterMessage message = ClusterMessageCodec.decode(bytes);
+            notifyListeners(listener -> listener.onMessage(message));
+         }
+      } catch (IOException e) {
+         if (!closed) {
+            logger.info("Lost cluster connection from {}: {}", remoteNodeId, e.toString());
+         }
+      } finally {
+         String leftNodeId = remoteNodeId;
+         if (leftNodeId != null && inboundPerNode.remove(leftNodeId, socket) && !closed) {
+            notifyListeners(listener -> listener.onNodeLeft(leftNodeId));
+         }
+      }
+   }
+
+   private void notifyListeners(Consumer<Listener> action) {
+      for (Listener listener : listeners) {
+         try {
+            action.accept(listener);
+         } catch (RuntimeException e) {
+            logger.error("Cluster listener failed", e);
+         }
+      }
+   }
+
+   private static void closeQuietly(Closeable closeable) {
+      try {
+         if (closeable != null) {
+            closeable.close();
+         }
+      } catch (IOException e) {
+         // Closing anyway
+      }
+   }
+
+   // The outbound connection to a peer, kept open for as long as the relay runs. Messages are only queued while the
+   // connection is up, as the peer is brought up to date by the listeners when it reconnects.
+   private final class Peer implements Runnable {
+
+      private final InetSocketAddress address;
+      private final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>(maxQueuedMessages);
+      private volatile Socket socket;
+      private volatile boolean connected;
+
+      private Peer(InetSocketAddress address) {
+         this.address = address;
+      }
+
+      private void offer(byte[] bytes) {
+         if (connected && !queue.offer(bytes)) {
+            // The peer cannot keep up, start over rather than leave it with a gap
+            logger.warn("Cluster peer {} is not keeping up, reconnecting", address);
+            closeQuietly(socket);
+         }
+      }
+
+      @Override
+      public void run() {
+         while (!closed) {
+            try (var newSocket = new Socket()) {
+               socket = newSocket;
+               newSocket.connect(address, CONNECT_TIMEOUT_MILLIS);
+               newSocket.setTcpNoDelay(true);
+               var out = new DataOutputStream(new BufferedOutputStream(newSocket.getOutputStream()));
+               out.writeUTF(nodeId);
+               out.flush();
+               connected = true;
+               logger.info("Connected to cluster peer {}", address);
+               notifyListeners(Listener::onConnected);
+               while (true) {
+                  byte[] bytes = queue.take();
+                  out.writeInt(bytes.length);
+                  out.write(bytes);
+                  if (queue.isEmpty()) {
+                     out.flush();
+                  }
+               }
+            } catch (IOException e) {
+               if (connected && !closed) {
+                  logger.info("Lost cluster connection to {}: {}", address, e.toString());
+               }
+            } catch (InterruptedException e) {
+               return;
+            } finally {
+               connected = false;
+               queue.clear();
+            }
+            try {
+               Thread.sleep(reconnectInterval.toMillis());
+            } catch (InterruptedException e) {
+               return;
+            }
+         }
+      }
+   }
+
+}
@@ -0,0 +1,46 @@
+package com.ragnaroh.chat.server.services.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Histogram with power-of-two bucket bounds in nanoseconds, from about a microsecond up to about a minute. Recording
+// only touches striped counters, so concurrent recorders do not contend.
+public final class LatencyHistogram {
+
+   private static final int MIN_EXPONENT = 10;
+   private static final int MAX_EXPONENT = 36;
+
+   // One bucket per exponent, plus one for everything above the largest bound
+   private final LongAdder[] buckets = new LongAdder[MAX_EXPONENT - MIN_EXPONENT + 2];
+   private final LongAdder sumNanos = new LongAdder();
+
+   public LatencyHistogram() {
+      for (int i = 0; i < buckets.length; i++) {
+         buckets[i] = new LongAdder();
+      }
+   }
+
+   public void record(long nanos) {
+      // The smallest power of two at or above the value decides the bucket
+      int exponent = nanos <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(nanos - 1);
+      buckets[Math.min(Math.max(exponent, MIN_EXPONENT), MAX_EXPONENT + 1) - MIN_EXPONENT].increment();
+      sumNanos.add(nanos);
+   }
+
+   public int getBucketCount() {
+      return buckets.length;
+   }
+
+   // Upper bound of the given bucket, or Long.MAX_VALUE for the last one
+   public long getUpperBoundNanos(int bucket) {
+      return bucket == buckets.length - 1 ? Long.MAX_VALUE : 1L << (bucket + MIN_EXPONENT);
+   }
+
+   public long getCount(int bucket) {
+      return buckets[bucket].sum();
+   }
+
+   public long getSumNanos() {
+      return sumNanos.sum();
+   }
+
+}
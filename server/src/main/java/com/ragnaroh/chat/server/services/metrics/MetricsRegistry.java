@@ -0,0 +1,148 @@
+package com.ragnaroh.chat.server.services.metrics;
+
+import static java.util.Comparator.comparing;
+import static java.util.stream.Collectors.toList;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import org.springframework.stereotype.Component;
+
+// Holds the application's metrics and writes them in the Prometheus text format
+@Component
+public class MetricsRegistry {
+
+   private static final double NANOS_PER_SECOND = 1e9;
+
+   private final Map<String, OperationMetrics> operations = new ConcurrentHashMap<>();
+   private final Map<String, Counter> counters = new ConcurrentSkipListMap<>();
+   private final Map<String, Gauge> gauges = new ConcurrentSkipListMap<>();
+
+   public OperationMetrics operation(String service, String operation) {
+      return operations.computeIfAbsent(service + '.' + operation, key -> new OperationMetrics(service, operation));
+   }
+
+   public LongAdder counter(String name, String help) {
+      return counters.computeIfAbsent(name, key -> new Counter(help)).value;
+   }
+
+   public void gauge(String name, String help, LongSupplier value) {
+      gauges.put(name, new Gauge("gauge", help, null, () -> Map.of("", value.getAsLong())));
+   }
+
+   // A gauge with one sample per label value, e.g. per room
+   public void gauge(String name, String help, String label, Supplier<Map<String, ? extends Number>> values) {
+      gauges.put(name, new Gauge("gauge", help, label, values));
+   }
+
+   // A counter with one sample per label value, kept by the caller
+   public void counter(String name, String help, String label, Supplier<Map<String, ? extends Number>> values) {
+      gauges.put(name, new Gauge("counter", help, label, values));
+   }
+
+   public void writePrometheus(Writer writer) throws IOException {
+      writeOperations(writer);
+      for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+         writeHeader(writer, entry.getKey(), entry.getValue().help, "counter");
+         writeSample(writer, entry.getKey(), "", entry.getValue().value.sum());
+      }
+      for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+         Gauge gauge = entry.getValue();
+         writeHeader(writer, entry.getKey(), gauge.help, gauge.type);
+         for (Map.Entry<String, ? extends Number> sample : new TreeMap<>(gauge.values.get()).entrySet()) {
+            String labels = gauge.label == null ? "" : label(gauge.label, sample.getKey());
+            writeSample(writer, entry.getKey(), labels, sample.getValue());
+         }
+      }
+      writer.flush();
+   }
+
+   private void writeOperations(Writer writer) throws IOException {
+      List<OperationMetrics> sortedOperations = operations
+            .values()
+            .stream()
+            .sorted(comparing(OperationMetrics::getService).thenComparing(OperationMetrics::getOperation))
+            .collect(toList());
+      String duration = "chat_service_operation_duration_seconds";
+      writeHeader(writer, duration, "Duration of service operations", "histogram");
+      for (OperationMetrics operation : sortedOperations) {
+         String labels = operationLabels(operation);
+         LatencyHistogram latency = operation.getLatency();
+         long cumulativeCount = 0;
+         for (int i = 0; i < latency.getBucketCount(); i++) {
+            cumulativeCount += latency.getCount(i);
+            long upperBound = latency.getUpperBoundNanos(i);
+            String le = upperBound == Long.MAX_VALUE ? "+Inf" : String.valueOf(upperBound / NANOS_PER_SECOND);
+            writeSample(writer, duration + "_bucket", labels + "," + label("le", le), cumulativeCount);
+         }
+         writeSample(writer, duration + "_sum", labels, latency.getSumNanos() / NANOS_PER_SECOND);
+         writeSample(writer, duration + "_count", labels, cumulativeCount);
+      }
+      String errors = "chat_service_operation_errors_total";
+      writeHeader(writer, errors, "Service operations that threw an exception", "counter");
+      for (OperationMetrics operation : sortedOperations) {
+         writeSample(writer, errors, operationLabels(operation), operation.getErrors());
+      }
+      String inFlight = "chat_service_operation_in_flight";
+      writeHeader(writer, inFlight, "Service operations currently executing", "gauge");
+      for (OperationMetrics operation : sortedOperations) {
+         writeSample(writer, inFlight, operationLabels(operation), operation.getInFlight());
+      }
+   }
+
+   private static String operationLabels(OperationMetrics operation) {
+      return label("service", operation.getService()) + "," + label("operation", operation.getOperation());
+   }
+
+   private static String label(String name, String value) {
+      return name + "=\"" + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"";
+   }
+
+   private static void writeHeader(Writer writer, String name, String help, String type) throws IOException {
+      writer.write("# HELP " + name + " " + help + "\n");
+      writer.write("# TYPE " + name + " " + type + "\n");
+   }
+
+   private static void writeSample(Writer writer, String name, String labels, Number value) throws IOException {
+      writer.write(name);
+      if (!labels.isEmpty()) {
+         writer.write("{" + labels + "}");
+      }
+      writer.write(" " + value + "\n");
+   }
+
+   private static final class Counter {
+
+      private final String help;
+      private final LongAdder value = new LongAdder();
+
+      private Counter(String help) {
+         this.help = help;
+      }
+   }
+
+   // Sampled on every scrape, which is what counters with labels are as well
+   private static final class Gauge {
+
+      private final String type;
+      private final String help;
+      private final String label;
+      private final Supplier<Map<String, ? extends Number>> values;
+
+      private Gauge(String type, String help, String label, Supplier<Map<String, ? extends Number>> values) {
+         this.type = type;
+         this.help = help;
+         this.label = label;
+         this.values = values;
+      }
+   }
+
+}
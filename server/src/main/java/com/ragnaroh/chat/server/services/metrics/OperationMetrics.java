@@ -0,0 +1,55 @@
+package com.ragnaroh.chat.server.services.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+public final class OperationMetrics {
+
+   private final String service;
+   private final String operation;
+   private final LatencyHistogram latency = new LatencyHistogram();
+   private final LongAdder errors = new LongAdder();
+   private final LongAdder inFlight = new LongAdder();
+
+   OperationMetrics(String service, String operation) {
+      this.service = service;
+      this.operation = operation;
+   }
+
+   // Returns the start time to pass to stop
+   public long start() {
+      inFlight.increment();
+      return System.nanoTime();
+   }
+
+   // Returns the duration in nanoseconds
+   public long stop(long start, boolean failed) {
+      long duration = System.nanoTime() - start;
+      latency.record(duration);
+      if (failed) {
+         errors.increment();
+      }
+      inFlight.decrement();
+      return duration;
+   }
+
+   String getService() {
+      return service;
+   }
+
+   String getOperation() {
+      return operation;
+   }
+
+   LatencyHistogram getLatency() {
+      return latency;
+   }
+
+   long getErrors() {
+      return errors.sum();
+   }
+
+   long getInFlight() {
+      return inFlight.sum();
+   }
+
+}
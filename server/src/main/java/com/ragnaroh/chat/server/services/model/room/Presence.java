@@ -0,0 +1,26 @@
+package com.ragnaroh.chat.server.services.model.room;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.List;
+
+// The active users of a room, sorted by username, as of the given presence version
+public final class Presence {
+
+   private final long version;
+   private final List<String> users;
+
+   public Presence(long version, List<String> users) {
+      this.version = version;
+      this.users = requireNonNull(users);
+   }
+
+   public long getVersion() {
+      return version;
+   }
+
+   public List<String> getUsers() {
+      return users;
+   }
+
+}
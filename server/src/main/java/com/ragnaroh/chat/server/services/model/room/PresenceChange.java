@@ -0,0 +1,96 @@
+package com.ragnaroh.chat.server.services.model.room;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.List;
+
+import com.ragnaroh.chat.server.services.model.room.event.Event;
+
+// Users added to and removed from a room's presence, taking it from one version to another, together with the events
+// recording the change. Changes no event records, such as the users of a node leaving along with it, have none.
+public final class PresenceChange {
+
+   private final List<Event> events;
+   private final long fromVersion;
+   private final long version;
+   private final List<String> added;
+   private final List<String> removed;
+
+   private PresenceChange(Builder builder) {
+      this.events = requireNonNull(builder.events);
+      this.fromVersion = requireNonNull(builder.fromVersion);
+      this.version = requireNonNull(builder.version);
+      this.added = requireNonNull(builder.added);
+      this.removed = requireNonNull(builder.removed);
+   }
+
+   public List<Event> getEvents() {
+      return events;
+   }
+
+   public long getFromVersion() {
+      return fromVersion;
+   }
+
+   public long getVersion() {
+      return version;
+   }
+
+   public List<String> getAdded() {
+      return added;
+   }
+
+   public List<String> getRemoved() {
+      return removed;
+   }
+
+   public static Builder builder() {
+      return new Builder();
+   }
+
+   public static final class Builder {
+
+      private List<Event> events = List.of();
+      private Long fromVersion;
+      private Long version;
+      private List<String> added = List.of();
+      private List<String> removed = List.of();
+
+      private Builder() {}
+
+      public Builder event(Event event) {
+         this.events = List.of(event);
+         return this;
+      }
+
+      public Builder events(List<Event> events) {
+         this.events = events;
+         return this;
+      }
+
+      public Builder fromVersion(Long fromVersion) {
+         this.fromVersion = fromVersion;
+         return this;
+      }
+
+      public Builder version(Long version) {
+         this.version = version;
+         return this;
+      }
+
+      public Builder added(List<String> added) {
+         this.added = added;
+         return this;
+      }
+
+      public Builder removed(List<String> removed) {
+         this.removed = removed;
+         return this;
+      }
+
+      public PresenceChange build() {
+         return new PresenceChange(this);
+      }
+   }
+
+}
@@ -4,20 +4,17 @@ import static java.util.Objects.requireNonNull;
 
 import java.util.List;
 
-import com.ragnaroh.chat.server.services.model.room.event.Event;
-
+// A room with its users. The history is not part of it, and is read on its own through RoomService.getEvents.
 public final class Room {
 
    private final String id;
    private final String name;
    private final List<User> users;
-   private final List<Event> events;
 
    private Room(Builder builder) {
       this.id = requireNonNull(builder.id);
       this.name = requireNonNull(builder.name);
       this.users = requireNonNull(builder.users);
-      this.events = requireNonNull(builder.events);
    }
 
    public String getId() {
@@ -32,10 +29,6 @@ public final class Room {
       return users;
    }
 
-   public List<Event> getEvents() {
-      return events;
-   }
-
    public static Builder builder() {
       return new Builder();
    }
@@ -45,7 +38,6 @@ public final class Room {
       private String id;
       private String name;
       private List<User> users;
-      private List<Event> events;
 
       private Builder() {}
 
@@ -64,11 +56,6 @@ public final class Room {
          return this;
       }
 
-      public Builder events(List<Event> events) {
-         this.events = events;
-         return this;
-      }
-
       public Room build() {
          return new Room(this);
       }
@@ -0,0 +1,26 @@
+package com.ragnaroh.chat.server.web.servlet.api;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.ragnaroh.chat.server.services.metrics.MetricsRegistry;
+
+@RestController
+public class MetricsController {
+
+   @Autowired
+   private MetricsRegistry metricsRegistry;
+
+   // Written directly to the response, since the only message converter is the JSON one
+   @GetMapping("/metrics")
+   public void getMetrics(HttpServletResponse response) throws IOException {
+      response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+      metricsRegistry.writePrometheus(response.getWriter());
+   }
+
+}
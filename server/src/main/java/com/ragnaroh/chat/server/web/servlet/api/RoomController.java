@@ -21,7 +21,7 @@ public class RoomController {
 
    @GetMapping("/name")
    public String getRoomName(@PathVariable("id") String roomId) {
-      return roomService.getRoom(roomId).getName();
+      return roomService.getRoomName(roomId);
    }
 
    @PostMapping("/try-enter")
@@ -1,6 +1,7 @@
 package com.ragnaroh.chat.server.web.servlet.api;
 
 import java.util.List;
+import java.util.Map;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.bind.annotation.GetMapping;
@@ -29,4 +30,9 @@ public class RoomsController {
       return roomService.createRoom(name);
    }
 
+   @GetMapping("/queue-depths")
+   public Map<String, Integer> getRoomQueueDepths() {
+      return roomService.getRoomQueueDepths();
+   }
+
 }
@@ -0,0 +1,59 @@
+package com.ragnaroh.chat.server.web.servlet.websocket;
+
+import java.util.Map;
+
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.ragnaroh.chat.server.services.RoomService;
+import com.ragnaroh.chat.server.services.cluster.ClusterMessage;
+import com.ragnaroh.chat.server.services.cluster.ClusterRelay;
+import com.ragnaroh.chat.server.services.model.room.PresenceChange;
+
+// Applies what the other nodes of the cluster publish, and passes it on to the subscribers connected to this node
+@Component
+public class ClusterRoomListener implements ClusterRelay.Listener, InitializingBean {
+
+   @Autowired
+   private ClusterRelay clusterRelay;
+   @Autowired
+   private RoomService roomService;
+   @Autowired
+   private StompTemplate stompTemplate;
+
+   @Override
+   public void afterPropertiesSet() {
+      clusterRelay.addListener(this);
+   }
+
+   @Override
+   public void onMessage(ClusterMessage message) {
+      switch (message.getType()) {
+      case EVENT -> {
+         String roomId = message.getRoomId();
+         PresenceChange change = roomService.applyRemoteEvent(message.getNodeId(), roomId, message.getEvent());
+         stompTemplate.sendToLocalRoom(roomId, RoomStompMessage.event(message.getEvent()));
+         if (change != null) {
+            stompTemplate.sendToLocalRoom(roomId, RoomStompMessage.usersDelta(change));
+         }
+      }
+      case PRESENCE -> sendChanges(roomService.replaceRemotePresence(message.getNodeId(), message.getUsersPerRoom()));
+      }
+   }
+
+   @Override
+   public void onConnected() {
+      clusterRelay.publish(ClusterMessage.presence(clusterRelay.getNodeId(), roomService.getLocalPresence()));
+   }
+
+   @Override
+   public void onNodeLeft(String nodeId) {
+      sendChanges(roomService.replaceRemotePresence(nodeId, Map.of()));
+   }
+
+   private void sendChanges(Map<String, PresenceChange> changes) {
+      changes.forEach((roomId, change) -> stompTemplate.sendToLocalRoom(roomId, RoomStompMessage.usersDelta(change)));
+   }
+
+}
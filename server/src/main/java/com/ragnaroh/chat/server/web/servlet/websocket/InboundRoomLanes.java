@@ -0,0 +1,260 @@
+package com.ragnaroh.chat.server.web.servlet.websocket;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import com.ragnaroh.chat.server.services.metrics.MetricsRegistry;
+
+// Ordered lanes for client messages about a room, each with a thread of its own. A room always maps to the same lane,
+// so its messages are handled one at a time in the order they arrived, while rooms on other lanes proceed in parallel.
+// The rooms sharing a lane take turns, so that a busy room cannot hold up the others for long.
+//
+// Unsubscribing and disconnecting are handled right away, on the thread of the connection, so they can overtake a
+// subscription still waiting in its lane. Such a subscription would leave the user active and the broker with a
+// subscription nobody removes, so the listeners cancel it first. A cancelled subscription is dropped from its lane, and
+// one being handled is waited for, which makes handling a subscription either happen entirely before the unsubscribe
+// or disconnect that ends it, or not at all.
+@Component
+public class InboundRoomLanes implements InitializingBean, DisposableBean {
+
+   private static final String APP_ROOM_PREFIX = "/app/room/";
+   // Upper bound on messages handled per turn of a room
+   private static final int MAX_MESSAGES_PER_TURN = 16;
+
+   private final Logger logger = LoggerFactory.getLogger(this.getClass());
+   private final Map<String, PendingSubscriptions> pendingSubscriptionsPerSession = new ConcurrentHashMap<>();
+
+   @Value("${chat.stomp.inbound-lanes:0}")
+   private int laneCount;
+
+   @Autowired
+   private MetricsRegistry metricsRegistry;
+
+   private Lane[] lanes;
+   private LongAdder droppedSubscriptions;
+
+   @Override
+   public void afterPropertiesSet() {
+      // Zero means one lane per available processor
+      int count = laneCount > 0 ? laneCount : Runtime.getRuntime().availableProcessors();
+      var threadFactory = new CustomizableThreadFactory("room-lane-");
+      threadFactory.setDaemon(true);
+      lanes = new Lane[count];
+      for (int i = 0; i < count; i++) {
+         lanes[i] = new Lane(Executors.newSingleThreadExecutor(threadFactory));
+      }
+      metricsRegistry
+            .gauge("chat_stomp_inbound_lane_depth",
+                   "Client messages waiting or being handled, per inbound room lane",
+                   "lane",
+                   this::getDepths);
+      droppedSubscriptions = metricsRegistry
+            .counter("chat_stomp_dropped_subscriptions_total",
+                     "Room subscriptions dropped from their lane, as the client unsubscribed or disconnected first");
+   }
+
+   @Override
+   public void destroy() throws InterruptedException {
+      for (Lane lane : lanes) {
+         lane.thread.shutdown();
+      }
+      for (Lane lane : lanes) {
+         lane.thread.awaitTermination(10, TimeUnit.SECONDS);
+      }
+   }
+
+   // The room a client message is about, or null if it is not about a room: messages sent to a room's application
+   // destinations, and subscriptions to a room's topic, so that joining a room is ordered with what follows
+   static String roomId(Message<?> message) {
+      SimpMessageType messageType = SimpMessageHeaderAccessor.getMessageType(message.getHeaders());
+      String destination = SimpMessageHeaderAccessor.getDestination(message.getHeaders());
+      if (messageType == SimpMessageType.SUBSCRIBE) {
+         return RoomSubscriptionRegistry.roomId(destination);
+      }
+      if (messageType != SimpMessageType.MESSAGE || destination == null || !destination.startsWith(APP_ROOM_PREFIX)) {
+         return null;
+      }
+      int end = destination.indexOf('/', APP_ROOM_PREFIX.length());
+      return end > APP_ROOM_PREFIX.length() ? destination.substring(APP_ROOM_PREFIX.length(), end) : null;
+   }
+
+   void execute(String roomId, Runnable task) {
+      lanes[lane(roomId.hashCode(), lanes.length)].execute(roomId, task);
+   }
+
+   // Runs the task in the room's lane, unless the subscription has been cancelled by then
+   void executeSubscribe(String roomId, String sessionId, String subscriptionId, Runnable task) {
+      pendingSubscriptionsPerSession.compute(sessionId, (id, pending) -> {
+         var nonNullPending = pending == null ? new PendingSubscriptions() : pending;
+         synchronized (nonNullPending) {
+            nonNullPending.subscriptionIds.add(subscriptionId);
+         }
+         return nonNullPending;
+      });
+      execute(roomId, () -> {
+         PendingSubscriptions pending = pendingSubscriptionsPerSession.get(sessionId);
+         if (pending == null) {
+            droppedSubscriptions.increment();
+            return;
+         }
+         // Held while the subscription is handled, for cancelling to wait on
+         synchronized (pending) {
+            if (!pending.subscriptionIds.remove(subscriptionId)) {
+               droppedSubscriptions.increment();
+               return;
+            }
+            task.run();
+         }
+         pendingSubscriptionsPerSession.computeIfPresent(sessionId, (id, p) -> {
+            synchronized (p) {
+               return p.subscriptionIds.isEmpty() ? null : p;
+            }
+         });
+      });
+   }
+
+   // Must be called before the unsubscribe is handled. Returns once the subscription is sure not to be handled after.
+   void cancelSubscribe(String sessionId, String subscriptionId) {
+      PendingSubscriptions pending = pendingSubscriptionsPerSession.get(sessionId);
+      if (pending != null) {
+         synchronized (pending) {
+            pending.subscriptionIds.remove(subscriptionId);
+         }
+      }
+   }
+
+   // Must be called before the disconnect is handled. Returns once no subscription of the session is to be handled.
+   void cancelSubscribes(String sessionId) {
+      PendingSubscriptions pending = pendingSubscriptionsPerSession.remove(sessionId);
+      if (pending != null) {
+         synchronized (pending) {
+            pending.subscriptionIds.clear();
+         }
+      }
+   }
+
+   private Map<String, Integer> getDepths() {
+      var depths = new HashMap<String, Integer>();
+      for (int i = 0; i < lanes.length; i++) {
+         depths.put(String.valueOf(i), lanes[i].getDepth());
+      }
+      return depths;
+   }
+
+   // Jump consistent hash (Lamping and Veach), which moves as few rooms as possible to another lane when the number of
+   // lanes changes, and spreads them evenly without a table
+   private static int lane(long key, int laneCount) {
+      long lane = -1;
+      long next = 0;
+      while (next < laneCount) {
+         lane = next;
+         key = key * 2862933555777941757L + 1;
+         next = (long) ((lane + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+      }
+      return (int) lane;
+   }
+
+   // Room subscriptions of a session waiting in their lanes, guarded by the instance itself
+   private static final class PendingSubscriptions {
+
+      private final Set<String> subscriptionIds = new HashSet<>();
+   }
+
+   private final class Lane implements Runnable {
+
+      private final ExecutorService thread;
+      // Guarded by this
+      private final Map<String, Deque<Runnable>> pendingPerRoom = new HashMap<>();
+      private final Deque<String> turns = new ArrayDeque<>();
+      private int depth;
+      private boolean scheduled;
+
+      private Lane(ExecutorService thread) {
+         this.thread = thread;
+      }
+
+      private void execute(String roomId, Runnable task) {
+         boolean schedule = false;
+         synchronized (this) {
+            Deque<Runnable> pending = pendingPerRoom.get(roomId);
+            if (pending == null) {
+               pending = new ArrayDeque<>();
+               pendingPerRoom.put(roomId, pending);
+               turns.add(roomId);
+            }
+            pending.add(task);
+            depth++;
+            if (!scheduled) {
+               scheduled = true;
+               schedule = true;
+            }
+         }
+         if (schedule) {
+            thread.execute(this);
+         }
+      }
+
+      @Override
+      public void run() {
+         while (true) {
+            Deque<Runnable> pending;
+            int count;
+            synchronized (this) {
+               String roomId = turns.poll();
+               if (roomId == null) {
+                  scheduled = false;
+                  return;
+               }
+               pending = pendingPerRoom.get(roomId);
+               count = Math.min(pending.size(), MAX_MESSAGES_PER_TURN);
+               if (count == pending.size()) {
+                  pendingPerRoom.remove(roomId);
+               } else {
+                  turns.add(roomId);
+               }
+            }
+            for (int i = 0; i < count; i++) {
+               Runnable task;
+               synchronized (this) {
+                  task = pending.poll();
+               }
+               try {
+                  task.run();
+               } catch (RuntimeException e) {
+                  logger.error("Failed to handle client message", e);
+               } finally {
+                  synchronized (this) {
+                     depth--;
+                  }
+               }
+            }
+         }
+      }
+
+      private synchronized int getDepth() {
+         return depth;
+      }
+   }
+
+}
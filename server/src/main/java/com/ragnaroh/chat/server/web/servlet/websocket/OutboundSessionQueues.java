@@ -0,0 +1,358 @@
+package com.ragnaroh.chat.server.web.servlet.websocket;
+
+import static java.util.stream.Collectors.joining;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationListener;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHandler;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.support.ExecutorSubscribableChannel;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.messaging.AbstractSubProtocolEvent;
+import org.springframework.web.socket.messaging.SessionConnectEvent;
+import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+
+import com.ragnaroh.chat.server.services.metrics.MetricsRegistry;
+import com.ragnaroh.chat.server.services.model.room.event.Event;
+
+// Gives every STOMP session a bounded queue of outbound messages, drained by at most one task at a time on the outbound
+// channel's pool. Broadcasting to a room only adds to the queues of its subscribers, so a client that reads slowly
+// holds up nobody but itself, and the slow consumer policy decides what happens once its queue is full. Messages of a
+// session are sent in the order they were queued, which the binary format's session dictionary relies on.
+@Component
+public class OutboundSessionQueues implements ApplicationListener<AbstractSubProtocolEvent>, InitializingBean {
+
+   // Room IDs with the sequence number of the last event the session was sent from each, so that a client that was
+   // disconnected knows what it missed
+   static final String RESUME_HEADER = "resume-from";
+
+   // Upper bound on messages sent per pool task, so that a busy session cannot starve the others
+   private static final int MAX_MESSAGES_PER_RUN = 32;
+
+   private final Logger logger = LoggerFactory.getLogger(this.getClass());
+   private final Map<String, SessionQueue> queues = new ConcurrentHashMap<>();
+   private final Map<String, LongAdder> droppedPerRoom = new ConcurrentHashMap<>();
+   private final Map<String, LongAdder> coalescedPerRoom = new ConcurrentHashMap<>();
+   private final RoomStompMessageConverter converter = new RoomStompMessageConverter();
+
+   @Autowired
+   private RoomMessageFormatInterceptor roomMessageFormatInterceptor;
+   @Autowired
+   private MetricsRegistry metricsRegistry;
+   @Value("${chat.stomp.slow-consumer.policy:coalesce}")
+   private String policyProperty;
+   @Value("${chat.stomp.slow-consumer.max-queued-messages:256}")
+   private int maxQueuedMessages;
+
+   private SlowConsumerPolicy policy;
+   private LongAdder disconnects;
+
+   @Override
+   public void afterPropertiesSet() {
+      policy = SlowConsumerPolicy.valueOf(policyProperty.trim().replace('-', '_').toUpperCase(Locale.ROOT));
+      disconnects = metricsRegistry
+            .counter("chat_stomp_slow_consumer_disconnects_total",
+                     "Sessions disconnected for not keeping up with their messages");
+      metricsRegistry
+            .gauge("chat_room_outbound_queue_depth",
+                   "Room messages waiting in session outbound queues, for rooms that have any",
+                   "room",
+                   this::getQueueDepths);
+      metricsRegistry
+            .counter("chat_room_outbound_dropped_total",
+                     "Room messages dropped from the outbound queues of slow sessions",
+                     "room",
+                     () -> sums(droppedPerRoom));
+      metricsRegistry
+            .counter("chat_room_outbound_coalesced_total",
+                     "Room messages merged into others in the outbound queues of slow sessions",
+                     "room",
+                     () -> sums(coalescedPerRoom));
+   }
+
+   @Override
+   public void onApplicationEvent(AbstractSubProtocolEvent event) {
+      String sessionId = SimpMessageHeaderAccessor.getSessionId(event.getMessage().getHeaders());
+      if (event instanceof SessionConnectEvent) {
+         queues.put(sessionId, new SessionQueue(sessionId));
+      } else if (event instanceof SessionDisconnectEvent) {
+         queues.remove(((SessionDisconnectEvent) event).getSessionId());
+      }
+   }
+
+   // Returns false for messages of sessions that are not connected, which the channel dispatches as usual
+   boolean offer(Message<?> message, ExecutorSubscribableChannel channel) {
+      String sessionId = SimpMessageHeaderAccessor.getSessionId(message.getHeaders());
+      SessionQueue queue = sessionId == null ? null : queues.get(sessionId);
+      if (queue == null) {
+         return false;
+      }
+      queue.add(message, channel);
+      return true;
+   }
+
+   private Map<String, Integer> getQueueDepths() {
+      var depths = new HashMap<String, Integer>();
+      for (SessionQueue queue : queues.values()) {
+         queue.addDepths(depths);
+      }
+      return depths;
+   }
+
+   private static Map<String, Long> sums(Map<String, LongAdder> adders) {
+      var sums = new HashMap<String, Long>();
+      adders.forEach((roomId, adder) -> sums.put(roomId, adder.sum()));
+      return sums;
+   }
+
+   private void count(Map<String, LongAdder> countsPerRoom, String roomId, int count) {
+      if (roomId != null && count > 0) {
+         countsPerRoom.computeIfAbsent(roomId, id -> new LongAdder()).add(count);
+      }
+   }
+
+   private static String roomId(Message<?> message) {
+      return RoomSubscriptionRegistry.roomId(SimpMessageHeaderAccessor.getDestination(message.getHeaders()));
+   }
+
+   // Null for anything but room messages, which are the only ones that may be dropped or merged
+   private static RoomStompMessage roomMessage(Message<?> message) {
+      Object roomMessage = message.getHeaders().get(RoomStompMessageConverter.ROOM_MESSAGE_HEADER);
+      return roomMessage instanceof RoomStompMessage && roomId(message) != null ? (RoomStompMessage) roomMessage : null;
+   }
+
+   @SuppressWarnings("unchecked")
+   private static Integer lastSequenceNumber(RoomStompMessage message) {
+      return switch (message.getType()) {
+      case EVENT -> ((Event) message.getObject()).getSequenceNumber();
+      case INITIAL_DATA -> {
+         var events = (List<Event>) ((Map<String, Object>) message.getObject()).get("events");
+         yield events.isEmpty() ? null : events.get(events.size() - 1).getSequenceNumber();
+      }
+      case BATCH -> {
+         Integer last = null;
+         for (RoomStompMessage batched : (List<RoomStompMessage>) message.getObject()) {
+            Integer sequenceNumber = lastSequenceNumber(batched);
+            last = sequenceNumber == null ? last : sequenceNumber;
+         }
+         yield last;
+      }
+      case USERS, USERS_DELTA -> null;
+      };
+   }
+
+   private final class SessionQueue implements Runnable {
+
+      private final String sessionId;
+      private final Deque<Message<?>> messages = new ArrayDeque<>();
+      private final Map<String, Integer> lastSequenceNumbers = new ConcurrentHashMap<>();
+      private ExecutorSubscribableChannel channel;
+      private boolean scheduled;
+      private boolean disconnected;
+
+      private SessionQueue(String sessionId) {
+         this.sessionId = sessionId;
+      }
+
+      private void add(Message<?> message, ExecutorSubscribableChannel channel) {
+         boolean schedule = false;
+         boolean disconnect = false;
+         synchronized (this) {
+            if (disconnected) {
+               count(droppedPerRoom, roomId(message), 1);
+               return;
+            }
+            this.channel = channel;
+            messages.add(message);
+            if (messages.size() > maxQueuedMessages && !relieve()) {
+               messages.forEach(dropped -> count(droppedPerRoom, roomId(dropped), 1));
+               messages.clear();
+               disconnected = true;
+               disconnect = true;
+            } else if (!scheduled) {
+               scheduled = true;
+               schedule = true;
+            }
+         }
+         if (disconnect) {
+            disconnect(channel);
+         } else if (schedule) {
+            channel.getExecutor().execute(this);
+         }
+      }
+
+      @Override
+      public void run() {
+         ExecutorSubscribableChannel channel;
+         for (int i = 0; i < MAX_MESSAGES_PER_RUN; i++) {
+            Message<?> message;
+            synchronized (this) {
+               message = messages.poll();
+               if (message == null) {
+                  scheduled = false;
+                  return;
+               }
+               channel = this.channel;
+            }
+            send(message, channel);
+         }
+         synchronized (this) {
+            channel = this.channel;
+         }
+         // Yield the thread to other sessions; this queue stays scheduled, so ordering is kept
+         channel.getExecutor().execute(this);
+      }
+
+      private void send(Message<?> message, ExecutorSubscribableChannel channel) {
+         RoomStompMessage roomMessage = roomMessage(message);
+         Integer sequenceNumber = roomMessage == null ? null : lastSequenceNumber(roomMessage);
+         if (sequenceNumber != null) {
+            lastSequenceNumbers.merge(roomId(message), sequenceNumber, Math::max);
+         }
+         Message<?> encoded = roomMessageFormatInterceptor.encode(message);
+         for (MessageHandler handler : channel.getSubscribers()) {
+            try {
+               handler.handleMessage(encoded);
+            } catch (Exception e) {
+               logger.error("Failed to send message to session {}", sessionId, e);
+            }
+         }
+      }
+
+      // Sent from the calling thread, as the queue's task may be stuck writing to the session. Closes the session once
+      // sent, or right away if the session has been blocked for longer than the send time limit.
+      private void disconnect(ExecutorSubscribableChannel channel) {
+         disconnects.increment();
+         logger.info("Disconnecting session {} for not keeping up with its messages", sessionId);
+         var accessor = StompHeaderAccessor.create(StompCommand.ERROR);
+         accessor.setSessionId(sessionId);
+         accessor.setMessage("Slow consumer");
+         if (!lastSequenceNumbers.isEmpty()) {
+            accessor.setNativeHeader(RESUME_HEADER,
+                                     lastSequenceNumbers
+                                           .entrySet()
+                                           .stream()
+                                           .map(entry -> entry.getKey() + ":" + entry.getValue())
+                                           .collect(joining(",")));
+         }
+         Message<byte[]> error = MessageBuilder.createMessage(new byte[0], accessor.getMessageHeaders());
+         for (MessageHandler handler : channel.getSubscribers()) {
+            try {
+               handler.handleMessage(error);
+            } catch (Exception e) {
+               logger.debug("Failed to send error to session {}", sessionId, e);
+            }
+         }
+      }
+
+      // Returns whether the queue is back within its bound
+      private boolean relieve() {
+         switch (policy) {
+         case DROP_PRESENCE -> dropPresence();
+         case COALESCE -> coalesce();
+         case DISCONNECT -> {}
+         }
+         return messages.size() <= maxQueuedMessages;
+      }
+
+      private void dropPresence() {
+         Iterator<Message<?>> iterator = messages.iterator();
+         while (iterator.hasNext()) {
+            Message<?> message = iterator.next();
+            RoomStompMessage roomMessage = roomMessage(message);
+            if (roomMessage != null
+                && (roomMessage.getType() == RoomStompMessage.Type.USERS
+                    || roomMessage.getType() == RoomStompMessage.Type.USERS_DELTA)) {
+               iterator.remove();
+               count(droppedPerRoom, roomId(message), 1);
+            }
+         }
+      }
+
+      // Merges the room messages of each subscription, up to the next message that is not a room message. The initial
+      // data is left alone as well, the client expects it as a message of its own.
+      private void coalesce() {
+         List<List<Message<?>>> runs = new ArrayList<>();
+         Map<String, List<Message<?>>> openRunsPerSubscription = new HashMap<>();
+         for (Message<?> message : messages) {
+            RoomStompMessage roomMessage = roomMessage(message);
+            if (roomMessage == null || roomMessage.getType() == RoomStompMessage.Type.INITIAL_DATA) {
+               runs.add(List.of(message));
+               openRunsPerSubscription.clear();
+               continue;
+            }
+            String subscriptionId = SimpMessageHeaderAccessor.getSubscriptionId(message.getHeaders());
+            List<Message<?>> run = openRunsPerSubscription.get(subscriptionId);
+            if (run == null) {
+               run = new ArrayList<>();
+               openRunsPerSubscription.put(subscriptionId, run);
+               runs.add(run);
+            }
+            run.add(message);
+         }
+         messages.clear();
+         for (List<Message<?>> run : runs) {
+            messages.add(run.size() == 1 ? run.get(0) : merge(run));
+         }
+      }
+
+      private Message<?> merge(List<Message<?>> run) {
+         List<RoomStompMessage> merged = new ArrayList<>();
+         for (Message<?> message : run) {
+            append(merged, roomMessage(message));
+         }
+         Message<?> last = run.get(run.size() - 1);
+         count(coalescedPerRoom, roomId(last), run.size() - 1);
+         var accessor = SimpMessageHeaderAccessor.wrap(last);
+         accessor.setLeaveMutable(true);
+         return converter
+               .toMessage(merged.size() == 1 ? merged.get(0) : RoomStompMessage.batch(merged),
+                          accessor.getMessageHeaders());
+      }
+
+      @SuppressWarnings("unchecked")
+      private void append(List<RoomStompMessage> merged, RoomStompMessage message) {
+         if (message.getType() == RoomStompMessage.Type.BATCH) {
+            ((List<RoomStompMessage>) message.getObject()).forEach(batched -> append(merged, batched));
+            return;
+         }
+         if (!merged.isEmpty()) {
+            RoomStompMessage combined = RoomStompMessage.combinedUsersDelta(merged.get(merged.size() - 1), message);
+            if (combined != null) {
+               merged.set(merged.size() - 1, combined);
+               return;
+            }
+         }
+         merged.add(message);
+      }
+
+      private synchronized void addDepths(Map<String, Integer> depths) {
+         for (Message<?> message : messages) {
+            String roomId = roomId(message);
+            if (roomId != null) {
+               depths.merge(roomId, 1, Integer::sum);
+            }
+         }
+      }
+   }
+
+}
@@ -0,0 +1,55 @@
+package com.ragnaroh.chat.server.web.servlet.websocket;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHandler;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.support.ExecutorSubscribableChannel;
+
+// Inbound channel that hands client messages about a room to the room's lane, instead of dispatching them to the pool
+// in no particular order. Other messages go to the pool as before. Takes over the executor and interceptors of the
+// channel it replaces.
+final class RoomLaneChannel extends ExecutorSubscribableChannel {
+
+   private final Logger logger = LoggerFactory.getLogger(this.getClass());
+   private final InboundRoomLanes inboundRoomLanes;
+
+   RoomLaneChannel(ExecutorSubscribableChannel channel, InboundRoomLanes inboundRoomLanes) {
+      super(channel.getExecutor());
+      setBeanName(channel.getBeanName());
+      setInterceptors(channel.getInterceptors());
+      this.inboundRoomLanes = inboundRoomLanes;
+   }
+
+   @Override
+   public boolean sendInternal(Message<?> message, long timeout) {
+      String roomId = InboundRoomLanes.roomId(message);
+      if (roomId == null) {
+         return super.sendInternal(message, timeout);
+      }
+      if (SimpMessageHeaderAccessor.getMessageType(message.getHeaders()) == SimpMessageType.SUBSCRIBE) {
+         // Dropped if the client unsubscribes or disconnects before its turn
+         inboundRoomLanes
+               .executeSubscribe(roomId,
+                                 SimpMessageHeaderAccessor.getSessionId(message.getHeaders()),
+                                 SimpMessageHeaderAccessor.getSubscriptionId(message.getHeaders()),
+                                 () -> handle(message));
+      } else {
+         inboundRoomLanes.execute(roomId, () -> handle(message));
+      }
+      return true;
+   }
+
+   private void handle(Message<?> message) {
+      for (MessageHandler handler : getSubscribers()) {
+         try {
+            handler.handleMessage(message);
+         } catch (RuntimeException e) {
+            logger.error("Failed to handle message {}", message, e);
+         }
+      }
+   }
+
+}
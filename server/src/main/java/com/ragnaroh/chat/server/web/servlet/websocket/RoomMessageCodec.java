@@ -0,0 +1,169 @@
+package com.ragnaroh.chat.server.web.servlet.websocket;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.util.MimeType;
+
+import com.ragnaroh.chat.server.services.model.room.event.Event;
+
+// Compact binary encoding of room messages, for clients that ask for it when subscribing:
+//
+//   frame        := flags:byte message
+//   flags        := 1 if names refer to the session dictionary, 0 if to a dictionary of this frame only
+//   message      := type:byte (0 INITIAL_DATA, 1 EVENT, 2 USERS, 3 USERS_DELTA, 4 BATCH) body
+//   INITIAL_DATA := usersVersion:varint count:varint name* count:varint event*
+//   EVENT        := event
+//   USERS        := version:varint count:varint name*
+//   USERS_DELTA  := fromVersion:varint version:varint count:varint name* count:varint name*
+//   BATCH        := count:varint message*
+//   event        := type:byte (0 MESSAGE, 1 JOINED, 2 PARTED) sequenceNumber:varint epochMillis:varint name
+//                   [text:string if MESSAGE]
+//   name         := 0 string (added as the next dictionary entry) | 1 string (not added) | n:varint (entry n - 2)
+//   string       := length:varint utf8
+//
+// Varints are unsigned LEB128. Timestamps are UTC epoch milliseconds.
+final class RoomMessageCodec {
+
+   static final MimeType MIME_TYPE = new MimeType("application", "octet-stream", Map.of("format", "chat-room-v1"));
+
+   // Keeps a session with a lot of user churn from growing its dictionary forever, later names are sent as literals
+   private static final int MAX_DICTIONARY_SIZE = 1024;
+
+   private RoomMessageCodec() {}
+
+   // Uses and extends the given session dictionary. Only valid if the client receives the frames of the session in the
+   // order they are encoded.
+   static byte[] encode(RoomStompMessage message, Map<String, Integer> sessionDictionary) {
+      return new Writer(sessionDictionary, 1).message(message).toByteArray();
+   }
+
+   // Encodes a frame that does not depend on what the client has received before
+   static byte[] encode(RoomStompMessage message) {
+      return new Writer(new HashMap<>(), 0).message(message).toByteArray();
+   }
+
+   private static final class Writer {
+
+      private final Map<String, Integer> dictionary;
+      private byte[] buffer = new byte[256];
+      private int size;
+
+      private Writer(Map<String, Integer> dictionary, int flags) {
+         this.dictionary = dictionary;
+         writeByte(flags);
+      }
+
+      @SuppressWarnings("unchecked")
+      private Writer message(RoomStompMessage message) {
+         Object object = message.getObject();
+         switch (message.getType()) {
+         case INITIAL_DATA -> {
+            var initialData = (Map<String, Object>) object;
+            writeByte(0);
+            writeVarint((Long) initialData.get("usersVersion"));
+            names((List<String>) initialData.get("users"));
+            var events = (List<Event>) initialData.get("events");
+            writeVarint(events.size());
+            events.forEach(this::event);
+         }
+         case EVENT -> {
+            writeByte(1);
+            event((Event) object);
+         }
+         case USERS -> {
+            var users = (Map<String, Object>) object;
+            writeByte(2);
+            writeVarint((Long) users.get("version"));
+            names((List<String>) users.get("users"));
+         }
+         case USERS_DELTA -> {
+            var delta = (Map<String, Object>) object;
+            writeByte(3);
+            writeVarint((Long) delta.get("fromVersion"));
+            writeVarint((Long) delta.get("version"));
+            names((List<String>) delta.get("added"));
+            names((List<String>) delta.get("removed"));
+         }
+         case BATCH -> {
+            var messages = (List<RoomStompMessage>) object;
+            writeByte(4);
+            writeVarint(messages.size());
+            messages.forEach(this::message);
+         }
+         }
+         return this;
+      }
+
+      private void event(Event event) {
+         writeByte(switch (event.getType()) {
+         case MESSAGE -> 0;
+         case JOINED -> 1;
+         case PARTED -> 2;
+         });
+         writeVarint(event.getSequenceNumber());
+         writeVarint(event.getTimestamp().toInstant(ZoneOffset.UTC).toEpochMilli());
+         name(event.getUsername());
+         if (event instanceof Event.Message) {
+            writeString(((Event.Message) event).getText());
+         }
+      }
+
+      private void names(List<String> names) {
+         writeVarint(names.size());
+         names.forEach(this::name);
+      }
+
+      private void name(String name) {
+         Integer index = dictionary.get(name);
+         if (index != null) {
+            writeVarint(index + 2L);
+         } else if (dictionary.size() < MAX_DICTIONARY_SIZE) {
+            dictionary.put(name, dictionary.size());
+            writeByte(0);
+            writeString(name);
+         } else {
+            writeByte(1);
+            writeString(name);
+         }
+      }
+
+      private void writeString(String value) {
+         byte[] bytes = value.getBytes(UTF_8);
+         writeVarint(bytes.length);
+         ensureCapacity(bytes.length);
+         System.arraycopy(bytes, 0, buffer, size, bytes.length);
+         size += bytes.length;
+      }
+
+      private void writeVarint(long value) {
+         ensureCapacity(10);
+         while ((value & ~0x7FL) != 0) {
+            buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+         }
+         buffer[size++] = (byte) value;
+      }
+
+      private void writeByte(int value) {
+         ensureCapacity(1);
+         buffer[size++] = (byte) value;
+      }
+
+      private void ensureCapacity(int additional) {
+         if (size + additional > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + additional));
+         }
+      }
+
+      private byte[] toByteArray() {
+         return Arrays.copyOf(buffer, size);
+      }
+   }
+
+}
@@ -0,0 +1,119 @@
+package com.ragnaroh.chat.server.web.servlet.websocket;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.support.ChannelInterceptor;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.stereotype.Component;
+import org.springframework.util.InvalidMimeTypeException;
+import org.springframework.util.MimeTypeUtils;
+
+// Encodes room messages in the binary format for subscriptions that asked for it with an accept header. Registered on
+// the inbound channel, to see subscriptions come and go. Messages are encoded by the session's outbound queue right
+// before they are sent, in the order the client receives them. Sessions on text-only transports always get JSON.
+@Component
+public class RoomMessageFormatInterceptor implements ChannelInterceptor {
+
+   private final Map<String, BinarySession> sessions = new ConcurrentHashMap<>();
+
+   @Override
+   public Message<?> preSend(Message<?> message, MessageChannel channel) {
+      SimpMessageType messageType = SimpMessageHeaderAccessor.getMessageType(message.getHeaders());
+      String sessionId = SimpMessageHeaderAccessor.getSessionId(message.getHeaders());
+      if (messageType == null || sessionId == null) {
+         return message;
+      }
+      switch (messageType) {
+      case SUBSCRIBE -> onSubscribe(message, sessionId);
+      case UNSUBSCRIBE -> onUnsubscribe(message, sessionId);
+      case DISCONNECT -> sessions.remove(sessionId);
+      default -> {}
+      }
+      return message;
+   }
+
+   private void onSubscribe(Message<?> message, String sessionId) {
+      var accessor = StompHeaderAccessor.wrap(message);
+      String accept = accessor.getFirstNativeHeader("accept");
+      Map<String, Object> attributes = accessor.getSessionAttributes();
+      if (attributes != null && attributes.containsKey(TextFramesHandshakeInterceptor.TEXT_FRAMES_ONLY_ATTRIBUTE)
+          || !acceptsBinary(accept)) {
+         return;
+      }
+      String subscriptionId = accessor.getSubscriptionId();
+      sessions.computeIfAbsent(sessionId, id -> new BinarySession()).addSubscription(subscriptionId);
+   }
+
+   // A malformed accept header gets the default format rather than an error
+   private static boolean acceptsBinary(String accept) {
+      if (accept == null) {
+         return false;
+      }
+      try {
+         return MimeTypeUtils.parseMimeTypes(accept).contains(RoomMessageCodec.MIME_TYPE);
+      } catch (InvalidMimeTypeException e) {
+         return false;
+      }
+   }
+
+   private void onUnsubscribe(Message<?> message, String sessionId) {
+      BinarySession session = sessions.get(sessionId);
+      if (session != null) {
+         session.removeSubscription(SimpMessageHeaderAccessor.getSubscriptionId(message.getHeaders()));
+      }
+   }
+
+   Message<?> encode(Message<?> message) {
+      Object roomMessage = message.getHeaders().get(RoomStompMessageConverter.ROOM_MESSAGE_HEADER);
+      String sessionId = SimpMessageHeaderAccessor.getSessionId(message.getHeaders());
+      BinarySession session = sessionId == null ? null : sessions.get(sessionId);
+      if (!(roomMessage instanceof RoomStompMessage) || session == null) {
+         return message;
+      }
+      byte[] payload = session.encode(SimpMessageHeaderAccessor.getSubscriptionId(message.getHeaders()),
+                                      (RoomStompMessage) roomMessage);
+      if (payload == null) {
+         return message;
+      }
+      var accessor = SimpMessageHeaderAccessor.wrap(message);
+      accessor.setContentType(RoomMessageCodec.MIME_TYPE);
+      accessor.setNativeHeader(StompHeaderAccessor.STOMP_CONTENT_TYPE_HEADER, RoomMessageCodec.MIME_TYPE.toString());
+      return MessageBuilder.createMessage(payload, accessor.getMessageHeaders());
+   }
+
+   private static final class BinarySession {
+
+      private final Set<String> subscriptionIds = new HashSet<>();
+      private final Map<String, Integer> dictionary = new HashMap<>();
+
+      private synchronized void addSubscription(String subscriptionId) {
+         subscriptionIds.add(subscriptionId);
+      }
+
+      private synchronized void removeSubscription(String subscriptionId) {
+         subscriptionIds.remove(subscriptionId);
+      }
+
+      // Returns null if the subscription gets JSON
+      private synchronized byte[] encode(String subscriptionId, RoomStompMessage message) {
+         if (!subscriptionIds.contains(subscriptionId)) {
+            return null;
+         }
+         // The initial data is the reply to a subscription, which does not go through the broker and can overtake
+         // messages that do, so it cannot rely on the session dictionary
+         return message.getType() == RoomStompMessage.Type.INITIAL_DATA
+               ? RoomMessageCodec.encode(message)
+               : RoomMessageCodec.encode(message, dictionary);
+      }
+   }
+
+}
@@ -3,10 +3,15 @@ package com.ragnaroh.chat.server.web.servlet.websocket;
 import static java.util.Objects.requireNonNull;
 import static java.util.stream.Collectors.toList;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import com.ragnaroh.chat.server.services.model.room.Presence;
+import com.ragnaroh.chat.server.services.model.room.PresenceChange;
 import com.ragnaroh.chat.server.services.model.room.event.Event;
 
 public final class RoomStompMessage {
@@ -14,7 +19,9 @@ public final class RoomStompMessage {
    public enum Type {
       INITIAL_DATA,
       EVENT,
-      USERS;
+      USERS,
+      USERS_DELTA,
+      BATCH;
    }
 
    private final Type type;
@@ -29,12 +36,78 @@ public final class RoomStompMessage {
       return new RoomStompMessage(Type.EVENT, requireNonNull(event));
    }
 
-   public static RoomStompMessage users(List<String> users) {
-      return new RoomStompMessage(Type.USERS, sorted(requireNonNull(users)));
+   public static RoomStompMessage users(Presence presence) {
+      return new RoomStompMessage(Type.USERS,
+                                  Map.of("version", presence.getVersion(), "users", sorted(presence.getUsers())));
    }
 
-   public static RoomStompMessage initialData(List<String> users, List<Event> events) {
-      return new RoomStompMessage(Type.INITIAL_DATA, Map.of("users", users, "events", events));
+   public static RoomStompMessage usersDelta(PresenceChange change) {
+      return usersDelta(change.getFromVersion(), change.getVersion(), change.getAdded(), change.getRemoved());
+   }
+
+   // The delta taking the users through both deltas at once, or null if the second one does not follow the first
+   @SuppressWarnings("unchecked")
+   public static RoomStompMessage combinedUsersDelta(RoomStompMessage first, RoomStompMessage second) {
+      if (first.type != Type.USERS_DELTA || second.type != Type.USERS_DELTA) {
+         return null;
+      }
+      var firstDelta = (Map<String, Object>) first.object;
+      var secondDelta = (Map<String, Object>) second.object;
+      if (!firstDelta.get("version").equals(secondDelta.get("fromVersion"))) {
+         return null;
+      }
+      var secondAdded = (List<String>) secondDelta.get("added");
+      var secondRemoved = (List<String>) secondDelta.get("removed");
+      Set<String> added = new LinkedHashSet<>((List<String>) firstDelta.get("added"));
+      added.removeAll(secondRemoved);
+      added.addAll(secondAdded);
+      Set<String> removed = new LinkedHashSet<>((List<String>) firstDelta.get("removed"));
+      removed.removeAll(secondAdded);
+      removed.addAll(secondRemoved);
+      return usersDelta((Long) firstDelta.get("fromVersion"),
+                        (Long) secondDelta.get("version"),
+                        List.copyOf(added),
+                        List.copyOf(removed));
+   }
+
+   private static RoomStompMessage usersDelta(long fromVersion, long version, List<String> added, List<String> removed) {
+      // Clients apply a delta only on top of the version it was made from, and ask for a snapshot on a gap
+      return new RoomStompMessage(Type.USERS_DELTA,
+                                  Map.of("fromVersion",
+                                         fromVersion,
+                                         "version",
+                                         version,
+                                         "added",
+                                         added,
+                                         "removed",
+                                         removed));
+   }
+
+   // Batches in the messages are flattened, as clients pass the messages of a batch on one by one
+   @SuppressWarnings("unchecked")
+   public static RoomStompMessage batch(List<RoomStompMessage> messages) {
+      if (messages.stream().noneMatch(message -> message.type == Type.BATCH)) {
+         return new RoomStompMessage(Type.BATCH, requireNonNull(messages));
+      }
+      var flattened = new ArrayList<RoomStompMessage>();
+      for (RoomStompMessage message : messages) {
+         if (message.type == Type.BATCH) {
+            flattened.addAll((List<RoomStompMessage>) message.object);
+         } else {
+            flattened.add(message);
+         }
+      }
+      return new RoomStompMessage(Type.BATCH, List.copyOf(flattened));
+   }
+
+   public static RoomStompMessage initialData(Presence presence, List<Event> events) {
+      return new RoomStompMessage(Type.INITIAL_DATA,
+                                  Map.of("users",
+                                         presence.getUsers(),
+                                         "usersVersion",
+                                         presence.getVersion(),
+                                         "events",
+                                         events));
    }
 
    public Type getType() {
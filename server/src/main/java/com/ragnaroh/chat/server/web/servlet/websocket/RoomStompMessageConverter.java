@@ -0,0 +1,39 @@
+package com.ragnaroh.chat.server.web.servlet.websocket;
+
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.converter.DefaultContentTypeResolver;
+import org.springframework.messaging.converter.MappingJackson2MessageConverter;
+import org.springframework.messaging.support.MessageHeaderAccessor;
+import org.springframework.util.MimeTypeUtils;
+
+// Converts room messages to JSON like the default converter, but also keeps the message itself in a header, so that it
+// can be encoded differently for sessions that have asked for another format
+final class RoomStompMessageConverter extends MappingJackson2MessageConverter {
+
+   static final String ROOM_MESSAGE_HEADER = "chatRoomMessage";
+
+   RoomStompMessageConverter() {
+      // Configured like the object mapper of the default converter, which registers the Java time module
+      setObjectMapper(Jackson2ObjectMapperBuilder.json().build());
+      var contentTypeResolver = new DefaultContentTypeResolver();
+      contentTypeResolver.setDefaultMimeType(MimeTypeUtils.APPLICATION_JSON);
+      setContentTypeResolver(contentTypeResolver);
+   }
+
+   @Override
+   protected boolean supports(Class<?> clazz) {
+      return RoomStompMessage.class.isAssignableFrom(clazz);
+   }
+
+   @Override
+   protected Object convertToInternal(Object payload, MessageHeaders headers, Object conversionHint) {
+      // Messaging templates pass mutable headers, which the message is then created with
+      var accessor = headers == null ? null : MessageHeaderAccessor.getAccessor(headers, MessageHeaderAccessor.class);
+      if (accessor != null && accessor.isMutable()) {
+         accessor.setHeader(ROOM_MESSAGE_HEADER, payload);
+      }
+      return super.convertToInternal(payload, headers, conversionHint);
+   }
+
+}
@@ -1,120 +1,444 @@
 package com.ragnaroh.chat.server.web.servlet.websocket;
 
 import static java.util.Collections.emptyList;
+import static java.util.stream.Collectors.toList;
 
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.convert.DurationStyle;
 import org.springframework.stereotype.Component;
 
 import com.ragnaroh.chat.server.common.Holder;
+import com.ragnaroh.chat.server.common.TimingWheel;
+import com.ragnaroh.chat.server.services.MailboxExecutor;
 import com.ragnaroh.chat.server.services.RoomService;
+import com.ragnaroh.chat.server.services.metrics.MetricsRegistry;
+import com.ragnaroh.chat.server.services.model.room.PresenceChange;
 
+// Keeps track of the rooms each user is subscribed to, across sessions. Subscriptions are updated atomically per user,
+// which tells whether the user has just arrived in or left a room. Activating and deactivating the user, which goes to
+// the database and broadcasts to the room, happens afterwards on a pool, in order per user and room.
+//
+// A user whose last subscription to a room went away with a disconnect lingers in the room for a while, as the client
+// is likely to be back after a reload or a network hiccup. Subscribing again within that time leaves the user as is,
+// sparing the room a PARTED and a JOINED event. Users of sessions found to be dead do not linger.
+//
+// Parts that come due while every presence thread is busy with a bulk deactivation wait for one to finish, and are then
+// deactivated together, so that a burst of disconnects takes a few transactions and presence broadcasts per room rather
+// than one per user.
 @Component
-public class RoomSubscriptionHelper {
+public class RoomSubscriptionHelper implements InitializingBean, DisposableBean {
+
+   private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+   private static final Duration LINGER_TICK = Duration.ofMillis(100);
+   private static final int LINGER_WHEEL_SIZE = 512;
+   // Upper bound on parts deactivated together, which keeps transactions and queries to a reasonable size
+   private static final int MAX_PARTS_PER_BATCH = 1024;
 
    private final Map<String, UserSubscriptions> subscriptionsPerUser = new ConcurrentHashMap<>();
+   private final Queue<PendingPart> dueParts = new ConcurrentLinkedQueue<>();
+   private final AtomicInteger batchesInFlight = new AtomicInteger();
+
+   @Value("${chat.stomp.presence-threads:0}")
+   private int presenceThreads;
+   // Parsed by hand, since the servlet contexts have no conversion service for durations
+   @Value("${chat.stomp.presence-linger:10s}")
+   private String lingerProperty;
 
    @Autowired
    private RoomService roomService;
    @Autowired
    private StompTemplate stompTemplate;
+   @Autowired
+   private MetricsRegistry metricsRegistry;
+
+   private MailboxExecutor<String> transitions;
+   private int maxBatchesInFlight;
+   private Duration linger;
+   // Null when users do not linger
+   private TimingWheel lingerTimers;
+   private LongAdder lingerResumes;
+
+   @Override
+   public void afterPropertiesSet() {
+      // Zero means one thread per available processor
+      int threads = presenceThreads > 0 ? presenceThreads : Runtime.getRuntime().availableProcessors();
+      transitions = new MailboxExecutor<>(threads, "presence-");
+      maxBatchesInFlight = threads;
+      linger = DurationStyle.detectAndParse(lingerProperty);
+      if (!linger.isZero()) {
+         lingerTimers = new TimingWheel(LINGER_TICK, LINGER_WHEEL_SIZE, "presence-linger-");
+         metricsRegistry
+               .gauge("chat_presence_lingering_users",
+                      "Users kept in a room after a disconnect took their last subscription to it",
+                      lingerTimers::getPendingCount);
+         lingerResumes = metricsRegistry
+               .counter("chat_presence_linger_resumes_total",
+                        "Lingering users who subscribed again in time, and were never parted");
+      }
+   }
+
+   @Override
+   public void destroy() throws InterruptedException {
+      if (lingerTimers != null) {
+         lingerTimers.stop();
+      }
+      // Users still in a room are parted in bulk, rather than left active with nobody to part them. The sessions have
+      // been closed by now, so these are mostly lingering users.
+      var parts = new ArrayList<PendingPart>();
+      for (String userId : subscriptionsPerUser.keySet()) {
+         subscriptionsPerUser.computeIfPresent(userId, (uid, subs) -> {
+            parts.addAll(subs.pendingParts.values());
+            for (String roomId : subs.clear()) {
+               var part = new PendingPart(userId, roomId, null);
+               subs.pendingParts.put(roomId, part);
+               parts.add(part);
+            }
+            return subs;
+         });
+      }
+      try {
+         partAll(parts).get(10, TimeUnit.SECONDS);
+      } catch (ExecutionException | TimeoutException e) {
+         logger.warn("Failed to part {} users from their rooms on shutdown", parts.size(), e);
+      }
+      transitions.shutdown();
+   }
 
-   public void onSubscribe(String userId, String sessionId, String subscriptionId, String roomId) {
+   // Completes once the user is active in the room, along with any transitions for the user and room queued before
+   public CompletableFuture<Void> onSubscribe(String userId, String sessionId, String subscriptionId, String roomId) {
+      var transition = new Holder<CompletableFuture<Void>>();
       subscriptionsPerUser.compute(userId, (uid, subs) -> {
          var nonNullSubs = subs == null ? new UserSubscriptions() : subs;
-         if (!nonNullSubs.subscrptionExistsForRoom(roomId)) {
-            activateUser(userId, roomId);
+         // A subscription id reused for another room leaves the previous room, as an unsubscribe would
+         String leftRoomId = nonNullSubs.removeReused(sessionId, subscriptionId, roomId);
+         if (leftRoomId != null) {
+            deactivateUser(leftRoomId, userId);
          }
-         nonNullSubs.add(sessionId, subscriptionId, roomId);
+         boolean first = nonNullSubs.add(sessionId, subscriptionId, roomId);
+         PendingPart part = first ? nonNullSubs.pendingParts.remove(roomId) : null;
+         if (part != null) {
+            // Back before being parted, still active
+            if (part.cancel()) {
+               lingerResumes.increment();
+            }
+            first = false;
+         }
+         // Queued while still inside compute, so that transitions for the user leave in the order they were decided
+         transition.set(submit(userId, roomId, first ? () -> activateUser(userId, roomId) : () -> {}));
          return nonNullSubs;
       });
+      return transition.get();
    }
 
    private void activateUser(String userId, String roomId) {
-      var event = roomService.activateUser(roomId, userId);
-      if (event != null) {
-         stompTemplate.sendToRoom(roomId, RoomStompMessage.event(event));
-         stompTemplate.sendToRoom(roomId, RoomStompMessage.users(roomService.getActiveUsers(roomId)));
+      var change = roomService.activateUser(roomId, userId);
+      if (change != null) {
+         change.getEvents().forEach(event -> stompTemplate.sendToRoom(roomId, RoomStompMessage.event(event)));
+         stompTemplate.sendToRoom(roomId, RoomStompMessage.usersDelta(change));
       }
    }
 
-   public void onUnsubscribe(String userId, String sessionId, String subscriptionId) {
+   public CompletableFuture<Void> onUnsubscribe(String userId, String sessionId, String subscriptionId) {
+      var transition = new Holder<>(CompletableFuture.<Void>completedFuture(null));
       subscriptionsPerUser.compute(userId, (uid, subs) -> {
          if (subs == null) {
             return null;
          }
          String roomId = subs.remove(sessionId, subscriptionId);
-         if (roomId != null && !subs.subscrptionExistsForRoom(roomId)) {
-            deactivateUser(roomId, userId);
+         if (roomId != null) {
+            transition.set(deactivateUser(roomId, userId));
          }
          return subs.isEmpty() ? null : subs;
       });
+      return transition.get();
    }
 
-   public void onDisconnect(String userId, String sessionId) {
+   // Completes once the user has been parted from the rooms the session held the last subscription to, unless the user
+   // lingers in them
+   public CompletableFuture<Void> onDisconnect(String userId, String sessionId) {
+      var parts = new ArrayList<PendingPart>();
       subscriptionsPerUser.compute(userId, (uid, subs) -> {
          if (subs == null) {
             return null;
          }
-         List<String> roomIds = subs.remove(sessionId);
-         for (String roomId : roomIds) {
-            if (!subs.subscrptionExistsForRoom(roomId)) {
-               deactivateUser(roomId, userId);
+         for (String roomId : subs.remove(sessionId)) {
+            if (lingerTimers == null) {
+               parts.add(pendingPart(subs, userId, roomId));
+            } else {
+               linger(subs, userId, roomId);
             }
          }
          return subs.isEmpty() ? null : subs;
       });
+      return partAll(parts);
    }
 
-   private void deactivateUser(String roomId, String userId) {
-      var event = roomService.deactivateUser(roomId, userId);
-      if (event != null) {
-         stompTemplate.sendToRoom(roomId, RoomStompMessage.event(event));
-         stompTemplate.sendToRoom(roomId, RoomStompMessage.users(roomService.getActiveUsers(roomId)));
+   // Parts the users of the sessions right away, as their clients have been gone for a while already. Completes once
+   // the users have been parted.
+   public CompletableFuture<Void> onStaleSessions(Map<String, String> userIdPerSession) {
+      var parts = new ArrayList<PendingPart>();
+      userIdPerSession.forEach((sessionId, userId) -> subscriptionsPerUser.computeIfPresent(userId, (uid, subs) -> {
+         for (String roomId : subs.remove(sessionId)) {
+            parts.add(pendingPart(subs, userId, roomId));
+         }
+         return subs.isEmpty() ? null : subs;
+      }));
+      return partAll(parts);
+   }
+
+   // Must be called inside compute for the user. The part stays pending until deactivation, which a new subscription
+   // cancels.
+   private PendingPart pendingPart(UserSubscriptions subs, String userId, String roomId) {
+      var part = new PendingPart(userId, roomId, null);
+      subs.pendingParts.put(roomId, part);
+      return part;
+   }
+
+   // Must be called inside compute for the user
+   private void linger(UserSubscriptions subs, String userId, String roomId) {
+      var timeout = new Holder<TimingWheel.Timeout>();
+      // The timer task has to go through compute for the user as well, by which time the holder has been set
+      timeout.set(lingerTimers.schedule(() -> endLinger(userId, roomId, timeout.get()), linger));
+      subs.pendingParts.put(roomId, new PendingPart(userId, roomId, timeout.get()));
+   }
+
+   private void endLinger(String userId, String roomId, TimingWheel.Timeout timeout) {
+      var due = new Holder<PendingPart>();
+      subscriptionsPerUser.computeIfPresent(userId, (uid, subs) -> {
+         // Otherwise the user has subscribed again, and possibly left again with a timer of its own
+         PendingPart part = subs.pendingParts.get(roomId);
+         if (part != null && part.timeout == timeout) {
+            due.set(part);
+         }
+         return subs;
+      });
+      if (due.get() != null) {
+         partAll(List.of(due.get()));
+      }
+   }
+
+   // Completes once the parts have been deactivated, or failed to be
+   private CompletableFuture<Void> partAll(List<PendingPart> parts) {
+      if (parts.isEmpty()) {
+         return CompletableFuture.completedFuture(null);
       }
+      dueParts.addAll(parts);
+      partDue();
+      return CompletableFuture.allOf(parts.stream().map(part -> part.parted).toArray(CompletableFuture[]::new));
    }
 
+   // Starts batches of due parts for as long as there are parts and presence threads to spare. Otherwise the parts are
+   // left for the next batch to finish, which is where batches grow during a burst.
+   private void partDue() {
+      while (!dueParts.isEmpty()) {
+         int inFlight = batchesInFlight.get();
+         if (inFlight >= maxBatchesInFlight) {
+            return;
+         }
+         if (!batchesInFlight.compareAndSet(inFlight, inFlight + 1)) {
+            continue;
+         }
+         var batch = new ArrayList<PendingPart>();
+         PendingPart part = dueParts.poll();
+         while (part != null) {
+            batch.add(part);
+            part = batch.size() < MAX_PARTS_PER_BATCH ? dueParts.poll() : null;
+         }
+         if (batch.isEmpty()) {
+            // Taken by another batch in the meantime
+            batchesInFlight.decrementAndGet();
+            continue;
+         }
+         deactivateUsers(batch).whenComplete((result, e) -> {
+            batchesInFlight.decrementAndGet();
+            partDue();
+         });
+      }
+   }
+
+   private CompletableFuture<Void> deactivateUser(String roomId, String userId) {
+      return submit(userId, roomId, () -> {
+         var change = roomService.deactivateUser(roomId, userId);
+         if (change != null) {
+            change.getEvents().forEach(event -> stompTemplate.sendToRoom(roomId, RoomStompMessage.event(event)));
+            stompTemplate.sendToRoom(roomId, RoomStompMessage.usersDelta(change));
+         }
+      }).whenComplete((result, e) -> {
+         if (e != null) {
+            logger.error("Failed to deactivate user {} in room {}", userId, roomId, e);
+         }
+      });
+   }
+
+   // Runs in the mailboxes of all the users and rooms at once, so that it is ordered with the transitions of each
+   private CompletableFuture<Void> deactivateUsers(List<PendingPart> parts) {
+      var keys = parts.stream().map(part -> part.userId + '/' + part.roomId).collect(toList());
+      return transitions.<Void>submitAll(keys, () -> {
+         var userIdsPerRoom = new HashMap<String, List<String>>();
+         for (PendingPart part : parts) {
+            subscriptionsPerUser.computeIfPresent(part.userId, (uid, subs) -> {
+               // Otherwise the user has subscribed again
+               if (subs.pendingParts.remove(part.roomId, part)) {
+                  userIdsPerRoom.computeIfAbsent(part.roomId, id -> new ArrayList<>()).add(part.userId);
+               }
+               return subs.isEmpty() ? null : subs;
+            });
+         }
+         if (!userIdsPerRoom.isEmpty()) {
+            roomService.deactivateUsers(userIdsPerRoom).forEach(this::broadcastParts);
+         }
+         return null;
+      }).whenComplete((result, e) -> {
+         if (e != null) {
+            logger.error("Failed to deactivate {} users", parts.size(), e);
+         }
+         parts.forEach(part -> part.parted.complete(null));
+      });
+   }
+
+   // One message for all the users parted from the room
+   private void broadcastParts(String roomId, PresenceChange change) {
+      var messages = new ArrayList<RoomStompMessage>();
+      change.getEvents().forEach(event -> messages.add(RoomStompMessage.event(event)));
+      messages.add(RoomStompMessage.usersDelta(change));
+      stompTemplate.sendToRoom(roomId, RoomStompMessage.batch(messages));
+   }
+
+   private CompletableFuture<Void> submit(String userId, String roomId, Runnable transition) {
+      return transitions.submit(userId + '/' + roomId, () -> {
+         transition.run();
+         return null;
+      });
+   }
+
+   // Not thread-safe, only used inside ConcurrentHashMap.compute for the user
    private static final class UserSubscriptions {
 
       private final Map<String, Map<String, String>> roomsPerSubscriptionPerSession = new HashMap<>();
+      // Number of subscriptions per room, across all sessions, so that the first and last one are found without
+      // looking through the sessions
+      private final Map<String, Integer> subscriptionCountPerRoom = new HashMap<>();
+      // Rooms the user lingers in or is about to be parted from
+      private final Map<String, PendingPart> pendingParts = new HashMap<>();
 
-      private void add(String sessionId, String subscriptionId, String roomId) {
-         roomsPerSubscriptionPerSession.computeIfAbsent(sessionId, id -> new HashMap<>()).put(subscriptionId, roomId);
+      // Returns true if this is the first subscription to the room. A subscription id reused for another room must have
+      // been removed first.
+      private boolean add(String sessionId, String subscriptionId, String roomId) {
+         String previousRoomId = roomsPerSubscriptionPerSession
+               .computeIfAbsent(sessionId, id -> new HashMap<>())
+               .put(subscriptionId, roomId);
+         if (previousRoomId != null) {
+            // Subscribed to the same room again
+            return false;
+         }
+         return subscriptionCountPerRoom.merge(roomId, 1, Integer::sum) == 1;
+      }
+
+      // Removes the subscription if its id was given to another room than this one. Returns that room if this was the
+      // last subscription to it.
+      private String removeReused(String sessionId, String subscriptionId, String roomId) {
+         var roomsPerSubscription = roomsPerSubscriptionPerSession.get(sessionId);
+         String previousRoomId = roomsPerSubscription == null ? null : roomsPerSubscription.get(subscriptionId);
+         if (previousRoomId == null || previousRoomId.equals(roomId)) {
+            return null;
+         }
+         return remove(sessionId, subscriptionId);
       }
 
+      // Returns the rooms the session held the last subscription to
       private List<String> remove(String sessionId) {
          var roomsPerSubscription = roomsPerSubscriptionPerSession.remove(sessionId);
-         return roomsPerSubscription == null ? emptyList() : new ArrayList<>(roomsPerSubscription.values());
+         if (roomsPerSubscription == null) {
+            return emptyList();
+         }
+         var lastRoomIds = new ArrayList<String>();
+         for (String roomId : roomsPerSubscription.values()) {
+            if (decrement(roomId)) {
+               lastRoomIds.add(roomId);
+            }
+         }
+         return lastRoomIds;
       }
 
+      // Returns the room if this was the last subscription to it
       private String remove(String sessionId, String subscriptionId) {
-         var holder = new Holder<String>();
-         roomsPerSubscriptionPerSession.compute(sessionId, (id, roomsPerSubscription) -> {
-            if (roomsPerSubscription == null) {
-               return null;
-            }
-            holder.set(roomsPerSubscription.remove(subscriptionId));
-            return roomsPerSubscription.isEmpty() ? null : roomsPerSubscription;
-         });
-         return holder.get();
+         var roomsPerSubscription = roomsPerSubscriptionPerSession.get(sessionId);
+         if (roomsPerSubscription == null) {
+            return null;
+         }
+         String roomId = roomsPerSubscription.remove(subscriptionId);
+         if (roomsPerSubscription.isEmpty()) {
+            roomsPerSubscriptionPerSession.remove(sessionId);
+         }
+         return roomId != null && decrement(roomId) ? roomId : null;
+      }
+
+      // Returns the rooms the user is subscribed to, forgetting every subscription
+      private Set<String> clear() {
+         Set<String> roomIds = Set.copyOf(subscriptionCountPerRoom.keySet());
+         roomsPerSubscriptionPerSession.clear();
+         subscriptionCountPerRoom.clear();
+         return roomIds;
       }
 
       private boolean isEmpty() {
-         return roomsPerSubscriptionPerSession.isEmpty();
+         return roomsPerSubscriptionPerSession.isEmpty() && pendingParts.isEmpty();
       }
 
-      private boolean subscrptionExistsForRoom(String roomId) {
-         return roomsPerSubscriptionPerSession
-               .values()
-               .stream()
-               .anyMatch(roomsPerSubscription -> roomsPerSubscription.containsValue(roomId));
+      // Returns true if the count reached zero
+      private boolean decrement(String roomId) {
+         return subscriptionCountPerRoom.computeIfPresent(roomId, (id, count) -> count == 1 ? null : count - 1) == null;
       }
 
    }
 
+   // A part that subscribing to the room again cancels
+   private static final class PendingPart {
+
+      private final String userId;
+      private final String roomId;
+      // Null for parts that are not timed
+      private final TimingWheel.Timeout timeout;
+      // Completed once the part has been dealt with, whether the user was parted or had subscribed again
+      private final CompletableFuture<Void> parted = new CompletableFuture<>();
+
+      private PendingPart(String userId, String roomId, TimingWheel.Timeout timeout) {
+         this.userId = userId;
+         this.roomId = roomId;
+         this.timeout = timeout;
+      }
+
+      // Returns true if the user was lingering. A timer that has fired already finds nothing to do, as it no longer is
+      // the pending part.
+      private boolean cancel() {
+         if (timeout == null) {
+            return false;
+         }
+         timeout.cancel();
+         return true;
+      }
+   }
+
 }
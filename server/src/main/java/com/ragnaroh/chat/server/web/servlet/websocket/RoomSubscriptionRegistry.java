@@ -0,0 +1,159 @@
+package com.ragnaroh.chat.server.web.servlet.websocket;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.messaging.Message;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.broker.DefaultSubscriptionRegistry;
+import org.springframework.messaging.simp.broker.SubscriptionRegistry;
+import org.springframework.util.CollectionUtils;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+
+import com.ragnaroh.chat.server.common.Holder;
+
+// Subscription registry for the simple broker that looks up room topic subscribers by room ID, instead of matching
+// the destination against every subscription. The default registry caches its matches, but the cache is invalidated by
+// every subscribe and unsubscribe, which happen all the time with many rooms. Other destinations are left to the
+// default registry. Selectors are not supported on room topics, the client never uses them.
+final class RoomSubscriptionRegistry implements SubscriptionRegistry {
+
+   private static final String ROOM_TOPIC_PREFIX = "/topic/room/";
+
+   private final SubscriptionRegistry fallback = new DefaultSubscriptionRegistry();
+   private final Map<String, RoomSubscribers> subscribersPerRoom = new ConcurrentHashMap<>();
+   // Room subscriptions per subscription ID per session, since unsubscribe messages carry no destination
+   private final Map<String, Map<String, String>> roomsPerSubscriptionPerSession = new ConcurrentHashMap<>();
+
+   @Override
+   public void registerSubscription(Message<?> message) {
+      String roomId = roomId(SimpMessageHeaderAccessor.getDestination(message.getHeaders()));
+      if (roomId == null) {
+         fallback.registerSubscription(message);
+         return;
+      }
+      String sessionId = SimpMessageHeaderAccessor.getSessionId(message.getHeaders());
+      String subscriptionId = SimpMessageHeaderAccessor.getSubscriptionId(message.getHeaders());
+      if (sessionId == null || subscriptionId == null) {
+         return;
+      }
+      roomsPerSubscriptionPerSession.compute(sessionId, (id, roomsPerSubscription) -> {
+         var nonNull = roomsPerSubscription == null ? new HashMap<String, String>() : roomsPerSubscription;
+         nonNull.put(subscriptionId, roomId);
+         return nonNull;
+      });
+      subscribersPerRoom.compute(roomId, (id, subscribers) -> {
+         var subscriber = new Subscriber(sessionId, subscriptionId);
+         return subscribers == null ? new RoomSubscribers(subscriber) : subscribers.with(subscriber);
+      });
+   }
+
+   @Override
+   public void unregisterSubscription(Message<?> message) {
+      String sessionId = SimpMessageHeaderAccessor.getSessionId(message.getHeaders());
+      String subscriptionId = SimpMessageHeaderAccessor.getSubscriptionId(message.getHeaders());
+      var roomId = new Holder<String>();
+      if (sessionId != null && subscriptionId != null) {
+         roomsPerSubscriptionPerSession.computeIfPresent(sessionId, (id, roomsPerSubscription) -> {
+            roomId.set(roomsPerSubscription.remove(subscriptionId));
+            return roomsPerSubscription.isEmpty() ? null : roomsPerSubscription;
+         });
+      }
+      if (roomId.get() == null) {
+         fallback.unregisterSubscription(message);
+         return;
+      }
+      removeSubscriber(roomId.get(), sessionId, subscriptionId);
+   }
+
+   @Override
+   public void unregisterAllSubscriptions(String sessionId) {
+      Map<String, String> roomsPerSubscription = roomsPerSubscriptionPerSession.remove(sessionId);
+      if (roomsPerSubscription != null) {
+         roomsPerSubscription
+               .forEach((subscriptionId, roomId) -> removeSubscriber(roomId, sessionId, subscriptionId));
+      }
+      fallback.unregisterAllSubscriptions(sessionId);
+   }
+
+   @Override
+   public MultiValueMap<String, String> findSubscriptions(Message<?> message) {
+      String roomId = roomId(SimpMessageHeaderAccessor.getDestination(message.getHeaders()));
+      if (roomId == null) {
+         return fallback.findSubscriptions(message);
+      }
+      RoomSubscribers subscribers = subscribersPerRoom.get(roomId);
+      return subscribers == null ? new LinkedMultiValueMap<>() : subscribers.subscriptionIdsPerSession;
+   }
+
+   private void removeSubscriber(String roomId, String sessionId, String subscriptionId) {
+      subscribersPerRoom
+            .computeIfPresent(roomId, (id, subscribers) -> subscribers.without(sessionId, subscriptionId));
+   }
+
+   // Only exact room topics are indexed, patterns are left to the default registry. Returns null for other destinations.
+   static String roomId(String destination) {
+      if (destination == null || !destination.startsWith(ROOM_TOPIC_PREFIX)) {
+         return null;
+      }
+      String roomId = destination.substring(ROOM_TOPIC_PREFIX.length());
+      if (roomId.isEmpty() || roomId.chars().anyMatch(c -> c == '/' || c == '*' || c == '?' || c == '{')) {
+         return null;
+      }
+      return roomId;
+   }
+
+   private static final class Subscriber {
+
+      private final String sessionId;
+      private final String subscriptionId;
+
+      private Subscriber(String sessionId, String subscriptionId) {
+         this.sessionId = sessionId;
+         this.subscriptionId = subscriptionId;
+      }
+
+      private boolean is(String sessionId, String subscriptionId) {
+         return this.sessionId.equals(sessionId) && this.subscriptionId.equals(subscriptionId);
+      }
+   }
+
+   // Copied on write, so that broadcasts read the subscribers without locking. The map handed to the broker is built
+   // along with the array, as the broker asks for it on every message.
+   private static final class RoomSubscribers {
+
+      private final Subscriber[] subscribers;
+      private final MultiValueMap<String, String> subscriptionIdsPerSession;
+
+      private RoomSubscribers(Subscriber... subscribers) {
+         this.subscribers = subscribers;
+         var subscriptionIdsPerSession = new LinkedMultiValueMap<String, String>(subscribers.length);
+         for (Subscriber subscriber : subscribers) {
+            subscriptionIdsPerSession.add(subscriber.sessionId, subscriber.subscriptionId);
+         }
+         this.subscriptionIdsPerSession = CollectionUtils.unmodifiableMultiValueMap(subscriptionIdsPerSession);
+      }
+
+      private RoomSubscribers with(Subscriber subscriber) {
+         Subscriber[] newSubscribers = Arrays.copyOf(subscribers, subscribers.length + 1);
+         newSubscribers[subscribers.length] = subscriber;
+         return new RoomSubscribers(newSubscribers);
+      }
+
+      // Returns null, removing the room from the index, when the last subscriber is gone
+      private RoomSubscribers without(String sessionId, String subscriptionId) {
+         Subscriber[] newSubscribers = Arrays
+               .stream(subscribers)
+               .filter(subscriber -> !subscriber.is(sessionId, subscriptionId))
+               .toArray(Subscriber[]::new);
+         if (newSubscribers.length == subscribers.length) {
+            return this;
+         }
+         return newSubscribers.length == 0 ? null : new RoomSubscribers(newSubscribers);
+      }
+   }
+
+}
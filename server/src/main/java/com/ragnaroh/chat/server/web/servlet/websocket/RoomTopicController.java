@@ -2,12 +2,12 @@ package com.ragnaroh.chat.server.web.servlet.websocket;
 
 import java.security.Principal;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.messaging.handler.annotation.DestinationVariable;
 import org.springframework.messaging.handler.annotation.MessageMapping;
 import org.springframework.messaging.handler.annotation.Payload;
-import org.springframework.messaging.handler.annotation.SendTo;
 import org.springframework.messaging.simp.annotation.SendToUser;
 import org.springframework.messaging.simp.annotation.SubscribeMapping;
 import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
@@ -22,24 +22,38 @@ public class RoomTopicController {
    private RoomService roomService;
    @Autowired
    private RoomSubscriptionHelper roomSubscriptionHelper;
+   @Autowired
+   private StompTemplate stompTemplate;
 
    @SubscribeMapping("/room/{id}")
-   public RoomStompMessage onSubscribe(@DestinationVariable("id") String id,
-                                       Principal principal,
-                                       StompHeaderAccessor headerAccessor) {
+   public CompletableFuture<RoomStompMessage> onSubscribe(@DestinationVariable("id") String id,
+                                                          Principal principal,
+                                                          StompHeaderAccessor headerAccessor) {
       String userId = principal.getName();
       String sessionId = headerAccessor.getSessionId();
       String subscriptionId = headerAccessor.getSubscriptionId();
-      roomSubscriptionHelper.onSubscribe(userId, sessionId, subscriptionId, id);
-      return RoomStompMessage.initialData(roomService.getActiveUsers(id), roomService.getEvents(id));
+      // The initial data is read once the user has been activated, so that it includes the user
+      return roomSubscriptionHelper
+            .onSubscribe(userId, sessionId, subscriptionId, id)
+            .thenApply(ignored -> RoomStompMessage.initialData(roomService.getPresence(id), roomService.getEvents(id)));
    }
 
    @MessageMapping("/room/{id}/message")
-   @SendTo("/topic/room/{id}")
-   public RoomStompMessage message(@DestinationVariable("id") String roomId,
-                                   @Payload String message,
-                                   Principal principal) {
-      return RoomStompMessage.event(roomService.addMessage(roomId, principal.getName(), message));
+   public CompletableFuture<Void> message(@DestinationVariable("id") String roomId,
+                                          @Payload String message,
+                                          Principal principal) {
+      // Returns without waiting for the room, the message is broadcast once it has been appended. Goes through the
+      // template like all other room messages, so that it is coalesced with them and keeps its order.
+      return roomService
+            .addMessageAsync(roomId, principal.getName(), message)
+            .thenAccept(event -> stompTemplate.sendToRoom(roomId, RoomStompMessage.event(event)));
+   }
+
+   @MessageMapping("/room/{id}/users")
+   @SendToUser(destinations = "/queue/room/{id}", broadcast = false)
+   public RoomStompMessage users(@DestinationVariable("id") String id) {
+      // Full snapshot for a client that has missed a presence delta
+      return RoomStompMessage.users(roomService.getPresence(id));
    }
 
    @MessageMapping("/room/{id}/part")
@@ -0,0 +1,24 @@
+package com.ragnaroh.chat.server.web.servlet.websocket;
+
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.ExecutorSubscribableChannel;
+
+// Outbound channel that hands the messages of connected sessions to their outbound queues, instead of dispatching every
+// message to the pool on its own. Takes over the executor and interceptors of the channel it replaces.
+final class SessionQueueChannel extends ExecutorSubscribableChannel {
+
+   private final OutboundSessionQueues outboundSessionQueues;
+
+   SessionQueueChannel(ExecutorSubscribableChannel channel, OutboundSessionQueues outboundSessionQueues) {
+      super(channel.getExecutor());
+      setBeanName(channel.getBeanName());
+      setInterceptors(channel.getInterceptors());
+      this.outboundSessionQueues = outboundSessionQueues;
+   }
+
+   @Override
+   public boolean sendInternal(Message<?> message, long timeout) {
+      return outboundSessionQueues.offer(message, this) || super.sendInternal(message, timeout);
+   }
+
+}
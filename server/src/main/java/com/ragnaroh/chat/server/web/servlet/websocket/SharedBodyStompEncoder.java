@@ -0,0 +1,146 @@
+package com.ragnaroh.chat.server.web.servlet.websocket;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompEncoder;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.support.NativeMessageHeaderAccessor;
+
+// STOMP encoder that encodes the part of a MESSAGE frame that is the same for every subscriber once per broadcast.
+// The broker hands every session the same payload array, with only the subscription and message ID headers differing,
+// so everything after those headers is cached by payload identity and copied in whole behind the per-session headers.
+// Spring sends every frame as one text message, so the frame still needs an array of its own per session.
+final class SharedBodyStompEncoder extends StompEncoder {
+
+   private static final byte[] MESSAGE_COMMAND = "MESSAGE\n".getBytes(UTF_8);
+   private static final byte[] SUBSCRIPTION_HEADER = "subscription:".getBytes(UTF_8);
+   private static final byte[] MESSAGE_ID_HEADER = "message-id:".getBytes(UTF_8);
+   private static final int CACHE_SLOTS = 64;
+
+   private final AtomicReferenceArray<SharedBody> cache = new AtomicReferenceArray<>(CACHE_SLOTS);
+
+   @Override
+   @SuppressWarnings("unchecked")
+   public byte[] encode(Map<String, Object> headers, byte[] payload) {
+      var nativeHeaders = (Map<String, List<String>>) headers.get(NativeMessageHeaderAccessor.NATIVE_HEADERS);
+      if (StompHeaderAccessor.getCommand(headers) != StompCommand.MESSAGE
+          || nativeHeaders == null
+          || isPerSessionPayload(nativeHeaders)) {
+         return super.encode(headers, payload);
+      }
+      byte[] subscription = headerValue(nativeHeaders, StompHeaderAccessor.STOMP_SUBSCRIPTION_HEADER);
+      byte[] messageId = headerValue(nativeHeaders, StompHeaderAccessor.STOMP_MESSAGE_ID_HEADER);
+      if (subscription == null || messageId == null) {
+         return super.encode(headers, payload);
+      }
+      SharedBody body = sharedBody(nativeHeaders, payload);
+      byte[] frame = new byte[MESSAGE_COMMAND.length
+                              + SUBSCRIPTION_HEADER.length
+                              + subscription.length
+                              + 1
+                              + MESSAGE_ID_HEADER.length
+                              + messageId.length
+                              + 1
+                              + body.bytes.length];
+      int position = put(frame, 0, MESSAGE_COMMAND);
+      position = put(frame, position, SUBSCRIPTION_HEADER);
+      position = put(frame, position, subscription);
+      frame[position++] = '\n';
+      position = put(frame, position, MESSAGE_ID_HEADER);
+      position = put(frame, position, messageId);
+      frame[position++] = '\n';
+      put(frame, position, body.bytes);
+      return frame;
+   }
+
+   private SharedBody sharedBody(Map<String, List<String>> nativeHeaders, byte[] payload) {
+      int slot = (System.identityHashCode(payload) & Integer.MAX_VALUE) % CACHE_SLOTS;
+      SharedBody body = cache.get(slot);
+      if (body != null && body.matches(nativeHeaders, payload)) {
+         return body;
+      }
+      body = new SharedBody(nativeHeaders, payload);
+      cache.set(slot, body);
+      return body;
+   }
+
+   // Binary room messages are encoded for each session, so there is nothing to share
+   private static boolean isPerSessionPayload(Map<String, List<String>> nativeHeaders) {
+      List<String> contentType = nativeHeaders.get(StompHeaderAccessor.STOMP_CONTENT_TYPE_HEADER);
+      return contentType != null && contentType.contains(RoomMessageCodec.MIME_TYPE.toString());
+   }
+
+   private static boolean isPerSession(String header) {
+      return header.equals(StompHeaderAccessor.STOMP_SUBSCRIPTION_HEADER)
+             || header.equals(StompHeaderAccessor.STOMP_MESSAGE_ID_HEADER)
+             // Written from the payload length instead, like the default encoder does
+             || header.equals(StompHeaderAccessor.STOMP_CONTENT_LENGTH_HEADER);
+   }
+
+   private static byte[] headerValue(Map<String, List<String>> nativeHeaders, String header) {
+      List<String> values = nativeHeaders.get(header);
+      return values == null || values.size() != 1 ? null : escape(values.get(0)).getBytes(UTF_8);
+   }
+
+   private static int put(byte[] frame, int position, byte[] bytes) {
+      System.arraycopy(bytes, 0, frame, position, bytes.length);
+      return position + bytes.length;
+   }
+
+   private static String escape(String value) {
+      if (value.chars().noneMatch(c -> c == '\\' || c == ':' || c == '\n' || c == '\r')) {
+         return value;
+      }
+      return value.replace("\\", "\\\\").replace(":", "\\c").replace("\n", "\\n").replace("\r", "\\r");
+   }
+
+   // The shared headers, the content length, the blank line ending the headers, the payload and the frame terminator
+   private static final class SharedBody {
+
+      private final byte[] payload;
+      private final Map<String, List<String>> headers = new HashMap<>();
+      private final byte[] bytes;
+
+      private SharedBody(Map<String, List<String>> nativeHeaders, byte[] payload) {
+         this.payload = payload;
+         var builder = new StringBuilder();
+         nativeHeaders.forEach((header, values) -> {
+            if (!isPerSession(header)) {
+               headers.put(header, List.copyOf(values));
+               for (String value : values) {
+                  builder.append(escape(header)).append(':').append(escape(value)).append('\n');
+               }
+            }
+         });
+         builder.append(StompHeaderAccessor.STOMP_CONTENT_LENGTH_HEADER).append(':').append(payload.length);
+         builder.append("\n\n");
+         byte[] head = builder.toString().getBytes(UTF_8);
+         // The last byte is left zero, terminating the frame
+         this.bytes = new byte[head.length + payload.length + 1];
+         put(bytes, put(bytes, 0, head), payload);
+      }
+
+      private boolean matches(Map<String, List<String>> nativeHeaders, byte[] payload) {
+         if (this.payload != payload) {
+            return false;
+         }
+         int shared = 0;
+         for (Map.Entry<String, List<String>> entry : nativeHeaders.entrySet()) {
+            if (!isPerSession(entry.getKey())) {
+               if (!entry.getValue().equals(headers.get(entry.getKey()))) {
+                  return false;
+               }
+               shared++;
+            }
+         }
+         return shared == headers.size();
+      }
+   }
+
+}
@@ -0,0 +1,16 @@
+package com.ragnaroh.chat.server.web.servlet.websocket;
+
+// What to do with a session whose outbound queue is full, because the client does not read as fast as messages are
+// sent to it
+public enum SlowConsumerPolicy {
+
+   // Drops queued user list updates, which the client recovers from by asking for a snapshot when it sees a gap in the
+   // versions. Disconnects if that is not enough.
+   DROP_PRESENCE,
+   // Merges the queued messages of each subscription into a batch, combining consecutive user list deltas. Disconnects if
+   // that is not enough.
+   COALESCE,
+   // Disconnects right away, telling the client which events it got last in each room
+   DISCONNECT
+
+}
@@ -0,0 +1,179 @@
+package com.ragnaroh.chat.server.web.servlet.websocket;
+
+import java.security.Principal;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.context.ApplicationListener;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.support.ChannelInterceptor;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+import org.springframework.web.socket.messaging.SubProtocolWebSocketHandler;
+
+import com.ragnaroh.chat.server.services.metrics.MetricsRegistry;
+
+// Closes sessions whose client has stopped sending heartbeats, which is how a connection that died without being
+// closed shows. Their users are parted together per room, rather than one at a time whenever the connection gives up.
+// Owns the scheduler the broker sends the server's heartbeats on.
+@Component
+public class StaleSessionReaper
+      implements ApplicationListener<SessionDisconnectEvent>, ChannelInterceptor, InitializingBean, DisposableBean {
+
+   // Heartbeats a client may miss before its session is closed. The broker gives up on the session after three, by
+   // which time the reaper has dealt with it.
+   private static final int MISSED_HEARTBEATS = 2;
+
+   private final Logger logger = LoggerFactory.getLogger(this.getClass());
+   private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+
+   // Parsed by hand, since the servlet contexts have no conversion service for durations
+   @Value("${chat.stomp.heartbeat-interval:10s}")
+   private String heartbeatIntervalProperty;
+
+   // Both provided lazily, as they depend on the broker configuration, which depends on this
+   @Autowired
+   private ObjectProvider<RoomSubscriptionHelper> roomSubscriptionHelper;
+   @Autowired
+   private ObjectProvider<SubProtocolWebSocketHandler> subProtocolWebSocketHandler;
+   @Autowired
+   private MetricsRegistry metricsRegistry;
+
+   private Duration heartbeatInterval;
+   private ThreadPoolTaskScheduler scheduler;
+   private LongAdder reaped;
+
+   @Override
+   public void afterPropertiesSet() {
+      heartbeatInterval = DurationStyle.detectAndParse(heartbeatIntervalProperty);
+      scheduler = new ThreadPoolTaskScheduler();
+      scheduler.setThreadNamePrefix("stomp-heartbeat-");
+      scheduler.setDaemon(true);
+      scheduler.initialize();
+      reaped = metricsRegistry
+            .counter("chat_stomp_stale_sessions_total", "Sessions closed for missing the heartbeats of their client");
+      metricsRegistry.gauge("chat_stomp_heartbeat_sessions", "Sessions expected to send heartbeats", sessions::size);
+      if (!heartbeatInterval.isZero()) {
+         // Every half interval, so that stale sessions are found well before the broker gives up on them
+         scheduler.scheduleAtFixedRate(this::reap, heartbeatInterval.dividedBy(2));
+      }
+   }
+
+   @Override
+   public void destroy() {
+      scheduler.shutdown();
+   }
+
+   TaskScheduler getHeartbeatScheduler() {
+      return scheduler;
+   }
+
+   // The heartbeats the server sends, and asks clients to send, in milliseconds
+   long[] getHeartbeatValue() {
+      long interval = heartbeatInterval.toMillis();
+      return new long[] { interval, interval };
+   }
+
+   @Override
+   public Message<?> preSend(Message<?> message, MessageChannel channel) {
+      String sessionId = SimpMessageHeaderAccessor.getSessionId(message.getHeaders());
+      if (sessionId == null) {
+         return message;
+      }
+      if (SimpMessageHeaderAccessor.getMessageType(message.getHeaders()) == SimpMessageType.CONNECT) {
+         connect(sessionId, message);
+      } else {
+         // Heartbeats come through as messages of their own, and any other frame shows the client is alive as well
+         Session session = sessions.get(sessionId);
+         if (session != null) {
+            session.lastReadTime = System.nanoTime();
+         }
+      }
+      return message;
+   }
+
+   private void connect(String sessionId, Message<?> message) {
+      Principal user = SimpMessageHeaderAccessor.getUser(message.getHeaders());
+      long clientInterval = StompHeaderAccessor.wrap(message).getHeartbeat()[0];
+      long serverInterval = heartbeatInterval.toMillis();
+      // Clients that send no heartbeats cannot be told apart from idle ones, and are left to the transport
+      if (user != null && clientInterval > 0 && serverInterval > 0) {
+         long staleAfter = Duration.ofMillis(Math.max(clientInterval, serverInterval) * MISSED_HEARTBEATS).toNanos();
+         sessions.put(sessionId, new Session(user.getName(), staleAfter));
+      }
+   }
+
+   @Override
+   public void onApplicationEvent(SessionDisconnectEvent event) {
+      sessions.remove(event.getSessionId());
+   }
+
+   private void reap() {
+      try {
+         long now = System.nanoTime();
+         var userIdPerSession = new HashMap<String, String>();
+         sessions.forEach((sessionId, session) -> {
+            if (now - session.lastReadTime > session.staleAfter) {
+               userIdPerSession.put(sessionId, session.userId);
+            }
+         });
+         if (userIdPerSession.isEmpty()) {
+            return;
+         }
+         userIdPerSession.keySet().forEach(sessions::remove);
+         reaped.add(userIdPerSession.size());
+         logger.info("Closing {} sessions whose heartbeats have lapsed", userIdPerSession.size());
+         roomSubscriptionHelper.getObject().onStaleSessions(userIdPerSession);
+         userIdPerSession.keySet().forEach(this::close);
+      } catch (RuntimeException e) {
+         logger.error("Failed to reap stale sessions", e);
+      }
+   }
+
+   // Sent past the outbound queue, which may be stuck on the dead connection. The STOMP handler closes the session once
+   // the error is sent, or right away if the session has been blocked for longer than the send time limit.
+   private void close(String sessionId) {
+      var accessor = StompHeaderAccessor.create(StompCommand.ERROR);
+      accessor.setSessionId(sessionId);
+      accessor.setMessage("Heartbeats lapsed");
+      try {
+         subProtocolWebSocketHandler
+               .getObject()
+               .handleMessage(MessageBuilder.createMessage(new byte[0], accessor.getMessageHeaders()));
+      } catch (Exception e) {
+         logger.debug("Failed to send error to session {}", sessionId, e);
+      }
+   }
+
+   private static final class Session {
+
+      private final String userId;
+      private final long staleAfter;
+      private volatile long lastReadTime = System.nanoTime();
+
+      private Session(String userId, long staleAfter) {
+         this.userId = userId;
+         this.staleAfter = staleAfter;
+      }
+   }
+
+}
@@ -1,22 +1,96 @@
 package com.ragnaroh.chat.server.web.servlet.websocket;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
 import org.apache.commons.lang3.ClassUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.convert.DurationStyle;
 import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Component;
 
+import com.ragnaroh.chat.server.services.cluster.ClusterMessage;
+import com.ragnaroh.chat.server.services.cluster.ClusterRelay;
+import com.ragnaroh.chat.server.services.model.room.event.Event;
+
+// Room messages are coalesced: the first message after a quiet period is sent right away and opens a window, messages
+// arriving within the window are sent together as one BATCH message when it ends, or as soon as the batch is full.
 @Component
-public class StompTemplate {
+public class StompTemplate implements InitializingBean, DisposableBean {
 
    private final Logger logger = LoggerFactory.getLogger(this.getClass());
 
+   private final Map<String, RoomBatch> batches = new ConcurrentHashMap<>();
+
+   // Parsed by hand, since the servlet contexts have no conversion service for durations
+   @Value("${chat.stomp.coalescing.window:20ms}")
+   private String windowProperty;
+   @Value("${chat.stomp.coalescing.max-messages:64}")
+   private int maxMessages;
+
    @Autowired
    private SimpMessagingTemplate messagingTemplate;
+   @Autowired
+   private ClusterRelay clusterRelay;
+
+   private Duration window;
+   private ScheduledExecutorService executor;
+
+   @Override
+   public void afterPropertiesSet() {
+      window = DurationStyle.detectAndParse(windowProperty);
+      if (!window.isZero()) {
+         var threadFactory = new CustomizableThreadFactory("stomp-coalescing-");
+         threadFactory.setDaemon(true);
+         executor = Executors.newSingleThreadScheduledExecutor(threadFactory);
+      }
+   }
 
    public void sendToRoom(String roomId, RoomStompMessage message) {
-      send("/topic/room/" + roomId, message);
+      relay(roomId, message);
+      sendToLocalRoom(roomId, message);
+   }
+
+   // The other nodes of the cluster pass events on to their own subscribers, and work out the presence changes from
+   // them. Presence versions are counted per node, so users deltas are not relayed.
+   @SuppressWarnings("unchecked")
+   private void relay(String roomId, RoomStompMessage message) {
+      switch (message.getType()) {
+      case EVENT -> clusterRelay
+            .publish(ClusterMessage.event(clusterRelay.getNodeId(), roomId, (Event) message.getObject()));
+      case BATCH -> ((List<RoomStompMessage>) message.getObject()).forEach(batched -> relay(roomId, batched));
+      case INITIAL_DATA, USERS, USERS_DELTA -> {}
+      }
+   }
+
+   // Sends to the subscribers connected to this node only
+   void sendToLocalRoom(String roomId, RoomStompMessage message) {
+      if (executor == null) {
+         send(roomDestination(roomId), message);
+         return;
+      }
+      while (true) {
+         RoomBatch batch = batches.computeIfAbsent(roomId, RoomBatch::new);
+         synchronized (batch) {
+            // A closed batch has been removed from the map, after sending everything it held
+            if (!batch.closed) {
+               batch.add(message);
+               return;
+            }
+         }
+      }
    }
 
    public void send(String destination, Object message) {
@@ -26,4 +100,78 @@ public class StompTemplate {
       messagingTemplate.convertAndSend(destination, message);
    }
 
+   @Override
+   public void destroy() throws InterruptedException {
+      if (executor != null) {
+         executor.shutdown();
+         executor.awaitTermination(10, TimeUnit.SECONDS);
+      }
+   }
+
+   private static String roomDestination(String roomId) {
+      return "/topic/room/" + roomId;
+   }
+
+   private final class RoomBatch {
+
+      private final String roomId;
+      private final List<RoomStompMessage> pending = new ArrayList<>();
+      // All fields are guarded by the batch itself
+      private boolean windowOpen;
+      private boolean closed;
+
+      private RoomBatch(String roomId) {
+         this.roomId = roomId;
+      }
+
+      @SuppressWarnings("unchecked")
+      private void add(RoomStompMessage message) {
+         if (!windowOpen) {
+            // Quiet room, no reason to wait
+            send(roomDestination(roomId), message);
+            openWindow();
+            return;
+         }
+         // Batches are taken apart, as clients only unwrap one level, and count as the messages they hold
+         if (message.getType() == RoomStompMessage.Type.BATCH) {
+            pending.addAll((List<RoomStompMessage>) message.getObject());
+         } else {
+            pending.add(message);
+         }
+         if (pending.size() >= maxMessages) {
+            flush();
+         }
+      }
+
+      private void openWindow() {
+         if (executor.isShutdown()) {
+            // Shutting down, later messages are sent right away
+            return;
+         }
+         windowOpen = true;
+         executor.schedule(this::endWindow, window.toNanos(), TimeUnit.NANOSECONDS);
+      }
+
+      private synchronized void endWindow() {
+         windowOpen = false;
+         if (pending.isEmpty()) {
+            closed = true;
+            batches.remove(roomId, this);
+            return;
+         }
+         flush();
+         // Keep batching for as long as the room stays busy
+         openWindow();
+      }
+
+      private void flush() {
+         if (pending.size() == 1) {
+            send(roomDestination(roomId), pending.get(0));
+         } else if (!pending.isEmpty()) {
+            send(roomDestination(roomId), RoomStompMessage.batch(List.copyOf(pending)));
+         }
+         pending.clear();
+      }
+   }
+
 }
@@ -0,0 +1,30 @@
+package com.ragnaroh.chat.server.web.servlet.websocket;
+
+import java.util.Map;
+
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.server.HandshakeInterceptor;
+
+// Marks the sessions of an endpoint whose transport can only carry text frames, such as SockJS
+class TextFramesHandshakeInterceptor implements HandshakeInterceptor {
+
+   static final String TEXT_FRAMES_ONLY_ATTRIBUTE = "textFramesOnly";
+
+   @Override
+   public boolean beforeHandshake(ServerHttpRequest request,
+                                  ServerHttpResponse response,
+                                  WebSocketHandler wsHandler,
+                                  Map<String, Object> attributes) {
+      attributes.put(TEXT_FRAMES_ONLY_ATTRIBUTE, Boolean.TRUE);
+      return true;
+   }
+
+   @Override
+   public void afterHandshake(ServerHttpRequest request,
+                              ServerHttpResponse response,
+                              WebSocketHandler wsHandler,
+                              Exception exception) {}
+
+}
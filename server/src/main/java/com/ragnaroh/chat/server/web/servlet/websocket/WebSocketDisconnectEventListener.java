@@ -8,11 +8,15 @@ import org.springframework.web.socket.messaging.SessionDisconnectEvent;
 @Component
 public class WebSocketDisconnectEventListener implements ApplicationListener<SessionDisconnectEvent> {
 
+   @Autowired
+   private InboundRoomLanes inboundRoomLanes;
    @Autowired
    private RoomSubscriptionHelper roomSubscriptionHelper;
 
    @Override
    public void onApplicationEvent(SessionDisconnectEvent event) {
+      // Subscriptions still in their lanes would otherwise be handled after the disconnect
+      inboundRoomLanes.cancelSubscribes(event.getSessionId());
       roomSubscriptionHelper.onDisconnect(event.getUser().getName(), event.getSessionId());
    }
 
@@ -1,30 +1,140 @@
 package com.ragnaroh.chat.server.web.servlet.websocket;
 
+import static java.lang.Math.toIntExact;
+
+import java.util.List;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.messaging.converter.MessageConverter;
+import org.springframework.messaging.simp.broker.SimpleBrokerMessageHandler;
+import org.springframework.messaging.simp.config.ChannelRegistration;
 import org.springframework.messaging.simp.config.MessageBrokerRegistry;
+import org.springframework.messaging.support.ExecutorSubscribableChannel;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.socket.WebSocketHandler;
 import org.springframework.web.socket.config.annotation.EnableWebSocketMessageBroker;
 import org.springframework.web.socket.config.annotation.StompEndpointRegistry;
 import org.springframework.web.socket.config.annotation.WebSocketMessageBrokerConfigurer;
+import org.springframework.web.socket.config.annotation.WebSocketTransportRegistration;
+import org.springframework.web.socket.messaging.StompSubProtocolHandler;
+import org.springframework.web.socket.messaging.SubProtocolWebSocketHandler;
 
 @Configuration
 @ComponentScan
 @EnableWebSocketMessageBroker
 public class WebSocketServletConfig implements WebSocketMessageBrokerConfigurer {
 
+   @Autowired
+   private RoomMessageFormatInterceptor roomMessageFormatInterceptor;
+   @Autowired
+   private StaleSessionReaper staleSessionReaper;
+   @Value("${chat.websocket.message-size-limit:64KB}")
+   private String messageSizeLimit;
+   @Value("${chat.websocket.send-buffer-size-limit:512KB}")
+   private String sendBufferSizeLimit;
+   @Value("${chat.websocket.send-time-limit:10s}")
+   private String sendTimeLimit;
+
+   @Bean
+   public static BeanPostProcessor roomSubscriptionRegistryInstaller() {
+      return new BeanPostProcessor() {
+         @Override
+         public Object postProcessBeforeInitialization(Object bean, String beanName) {
+            // The broker registration has no option for a custom subscription registry
+            if (bean instanceof SimpleBrokerMessageHandler) {
+               ((SimpleBrokerMessageHandler) bean).setSubscriptionRegistry(new RoomSubscriptionRegistry());
+            }
+            return bean;
+         }
+      };
+   }
+
+   @Bean
+   public static BeanPostProcessor sessionQueueChannelInstaller(ObjectProvider<OutboundSessionQueues> queues) {
+      return new BeanPostProcessor() {
+         @Override
+         public Object postProcessAfterInitialization(Object bean, String beanName) {
+            // The outbound channel dispatches every message to its pool on its own, which has no notion of sessions
+            if (beanName.equals("clientOutboundChannel")) {
+               return new SessionQueueChannel((ExecutorSubscribableChannel) bean, queues.getObject());
+            }
+            return bean;
+         }
+      };
+   }
+
+   @Bean
+   public static BeanPostProcessor roomLaneChannelInstaller(ObjectProvider<InboundRoomLanes> lanes) {
+      return new BeanPostProcessor() {
+         @Override
+         public Object postProcessAfterInitialization(Object bean, String beanName) {
+            // The inbound channel's pool handles messages in any order, and lets a busy room take every thread
+            if (beanName.equals("clientInboundChannel")) {
+               return new RoomLaneChannel((ExecutorSubscribableChannel) bean, lanes.getObject());
+            }
+            return bean;
+         }
+      };
+   }
+
+   @Bean
+   public SmartInitializingSingleton stompEncoderInstaller(WebSocketHandler subProtocolWebSocketHandler) {
+      // The STOMP handler is only added once the endpoints have been registered, so this waits for all beans
+      return () -> ((SubProtocolWebSocketHandler) subProtocolWebSocketHandler)
+            .getProtocolHandlers()
+            .stream()
+            .filter(StompSubProtocolHandler.class::isInstance)
+            .forEach(handler -> ((StompSubProtocolHandler) handler).setEncoder(new SharedBodyStompEncoder()));
+   }
+
    @Override
    public void registerStompEndpoints(StompEndpointRegistry registry) {
+      // Preferred by the client, without the SockJS framing on top of every frame
+      registry.addEndpoint("/stomp-native").setHandshakeHandler(new StompHandshakeHandler());
+      // For clients that cannot open a WebSocket connection
       registry
             .addEndpoint("/stomp")
             .setHandshakeHandler(new StompHandshakeHandler())
+            .addInterceptors(new TextFramesHandshakeInterceptor())
             .withSockJS()
             .setClientLibraryUrl("../../resources/sockjs.min.js");
    }
 
+   @Override
+   public void configureWebSocketTransport(WebSocketTransportRegistration registration) {
+      registration
+            .setMessageSizeLimit(toIntExact(DataSize.parse(messageSizeLimit).toBytes()))
+            .setSendBufferSizeLimit(toIntExact(DataSize.parse(sendBufferSizeLimit).toBytes()))
+            .setSendTimeLimit(toIntExact(DurationStyle.detectAndParse(sendTimeLimit).toMillis()));
+   }
+
    @Override
    public void configureMessageBroker(MessageBrokerRegistry registry) {
-      registry.enableSimpleBroker("/topic", "/queue");
+      registry
+            .enableSimpleBroker("/topic", "/queue")
+            .setHeartbeatValue(staleSessionReaper.getHeartbeatValue())
+            .setTaskScheduler(staleSessionReaper.getHeartbeatScheduler());
       registry.setApplicationDestinationPrefixes("/app", "/topic");
    }
 
+   @Override
+   public void configureClientInboundChannel(ChannelRegistration registration) {
+      registration.interceptors(roomMessageFormatInterceptor, staleSessionReaper);
+   }
+
+   @Override
+   public boolean configureMessageConverters(List<MessageConverter> messageConverters) {
+      // First, ahead of the JSON converter that would otherwise take room messages
+      messageConverters.add(0, new RoomStompMessageConverter());
+      return true;
+   }
+
 }
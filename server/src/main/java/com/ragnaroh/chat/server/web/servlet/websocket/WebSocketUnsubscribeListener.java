@@ -9,6 +9,8 @@ import org.springframework.web.socket.messaging.SessionUnsubscribeEvent;
 @Component
 public class WebSocketUnsubscribeListener implements ApplicationListener<SessionUnsubscribeEvent> {
 
+   @Autowired
+   private InboundRoomLanes inboundRoomLanes;
    @Autowired
    private RoomSubscriptionHelper subscriptionHelper;
 
@@ -16,6 +18,8 @@ public class WebSocketUnsubscribeListener implements ApplicationListener<Session
    public void onApplicationEvent(SessionUnsubscribeEvent event) {
       var headerAccessor = StompHeaderAccessor.wrap(event.getMessage());
       String subscriptionId = headerAccessor.getSubscriptionId();
+      // Published before the UNSUBSCRIBE is sent on, so a subscription still in its lane is cancelled here
+      inboundRoomLanes.cancelSubscribe(headerAccessor.getSessionId(), subscriptionId);
       subscriptionHelper.onUnsubscribe(event.getUser().getName(), headerAccessor.getSessionId(), subscriptionId);
    }
 